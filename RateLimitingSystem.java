@@ -1,11 +1,83 @@
-import java.util.Deque;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 
 class APIRequest {
@@ -45,7 +117,211 @@ class APIRequest {
 }
 
 interface RateLimiter {
-    RequestStatus allowRequest(String apiKey);
+    long UNKNOWN_DELAY = -1;
+    long NEVER = Long.MAX_VALUE;
+
+    default RequestStatus allowRequest(String apiKey) {
+        return tryAcquire(apiKey, 1);
+    }
+
+    /** Takes all {@code permits} for the key or none of them. */
+    RequestStatus tryAcquire(String apiKey, int permits);
+
+    /** Takes as many of {@code permits} as are available for the key and returns how many were granted. */
+    default int acquireUpTo(String apiKey, int permits) {
+        requirePositive(permits);
+        int granted = 0;
+        while (granted < permits && tryAcquire(apiKey, 1) == RequestStatus.ALLOWED) {
+            granted++;
+        }
+        return granted;
+    }
+
+    /** Live key count and state size, or null if the limiter keeps no per-key state. */
+    default KeyStateMetrics keyStateMetrics() {
+        return null;
+    }
+
+    /**
+     * Gives back permits acquired earlier but not used, e.g. by a lease that expired. Limiters
+     * that cannot take permits back ignore this.
+     */
+    default void release(String apiKey, int permits) {
+    }
+
+    /**
+     * Admits a batch of single-permit requests. Repeated keys are grouped so each key's state is
+     * touched once; earlier occurrences of a key win when only some of them fit.
+     */
+    default RequestStatus[] allowRequests(Collection<String> apiKeys) {
+        RequestStatus[] statuses = new RequestStatus[apiKeys.size()];
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        int index = 0;
+        for (String apiKey : apiKeys) {
+            positions.computeIfAbsent(apiKey, k -> new ArrayList<>()).add(index++);
+        }
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            List<Integer> slots = entry.getValue();
+            int granted = acquireUpTo(entry.getKey(), slots.size());
+            for (int i = 0; i < slots.size(); i++) {
+                statuses[slots.get(i)] = i < granted ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Takes all {@code permits} and returns 0, or takes nothing and returns the nanos until they
+     * could be taken: {@link #NEVER} if they never can, {@link #UNKNOWN_DELAY} if the limiter
+     * cannot tell.
+     */
+    default long tryAcquireOrDelay(String apiKey, int permits) {
+        return decide(apiKey, permits, RateLimitDecision.scratch()).getRetryAfterNanos();
+    }
+
+    /**
+     * Like {@link #tryAcquire}, but also reports the remaining quota, reset time and retry-after
+     * delay observed in the same critical section. Fills and returns {@code decision}, so a
+     * caller reusing one holder allocates nothing. Limiters that cannot tell report -1.
+     */
+    default RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        RequestStatus status = tryAcquire(apiKey, permits);
+        return decision.set(status, RateLimitDecision.UNKNOWN, RateLimitDecision.UNKNOWN,
+                status == RequestStatus.ALLOWED ? 0 : UNKNOWN_DELAY);
+    }
+
+    /** {@link #decide} packed into one long; see {@link RateLimitDecision#pack}. */
+    default long decidePacked(String apiKey, int permits) {
+        return decide(apiKey, permits, RateLimitDecision.scratch()).pack();
+    }
+
+    static int requirePositive(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive");
+        }
+        return permits;
+    }
+
+    static int grantable(long available, int permits, boolean partial) {
+        if (available >= permits) return permits;
+        return partial ? (int) Math.max(0, available) : 0;
+    }
+}
+
+/**
+ * Outcome of {@link RateLimiter#decide}, carrying what the HTTP layer needs for
+ * X-RateLimit-Remaining, X-RateLimit-Reset and Retry-After. Mutable so it can be reused.
+ */
+class RateLimitDecision {
+    static final long UNKNOWN = -1;
+    private static final ThreadLocal<RateLimitDecision> SCRATCH = ThreadLocal.withInitial(RateLimitDecision::new);
+
+    // Packed layout: [allowed : 1][remaining : 21][reset millis : 21][retry-after millis : 21]
+    private static final int FIELD_BITS = 21;
+    static final long SATURATED = (1L << FIELD_BITS) - 1;
+
+    private RequestStatus status;
+    private long remaining;
+    private long resetNanos;
+    private long retryAfterNanos;
+
+    static RateLimitDecision scratch() {
+        return SCRATCH.get();
+    }
+
+    RateLimitDecision set(RequestStatus status, long remaining, long resetNanos, long retryAfterNanos) {
+        this.status = status;
+        this.remaining = remaining;
+        this.resetNanos = resetNanos;
+        this.retryAfterNanos = retryAfterNanos;
+        return this;
+    }
+
+    public RequestStatus getStatus() {
+        return status;
+    }
+
+    /** Permits left after this decision. */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /** Nanos until the key is back to its full quota if nothing else is admitted. */
+    public long getResetNanos() {
+        return resetNanos;
+    }
+
+    /** 0 when allowed; otherwise nanos until a retry could succeed, or {@link RateLimiter#NEVER}. */
+    public long getRetryAfterNanos() {
+        return retryAfterNanos;
+    }
+
+    /**
+     * Packs the decision into one long. Each field saturates at {@link #SATURATED}, which also
+     * stands for unknown and never, so times beyond about 35 minutes read as saturated.
+     */
+    public long pack() {
+        long allowed = status == RequestStatus.ALLOWED ? 1L << 63 : 0;
+        return allowed
+                | saturate(remaining) << (2 * FIELD_BITS)
+                | saturate(toMillis(resetNanos)) << FIELD_BITS
+                | saturate(toMillis(retryAfterNanos));
+    }
+
+    static boolean isAllowed(long packed) {
+        return packed < 0;
+    }
+
+    static long remaining(long packed) {
+        return (packed >>> (2 * FIELD_BITS)) & SATURATED;
+    }
+
+    static long resetMillis(long packed) {
+        return (packed >>> FIELD_BITS) & SATURATED;
+    }
+
+    static long retryAfterMillis(long packed) {
+        return packed & SATURATED;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos < 0 || nanos == RateLimiter.NEVER ? -1 : (nanos + 999_999) / 1_000_000;
+    }
+
+    private static long saturate(long value) {
+        return value < 0 || value > SATURATED ? SATURATED : value;
+    }
+}
+
+/** Limiters that look at the whole request rather than just its API key. */
+interface RequestRateLimiter {
+    default RequestStatus allowRequest(APIRequest request) {
+        return tryAcquire(request, 1);
+    }
+
+    RequestStatus tryAcquire(APIRequest request, int permits);
+}
+
+/** Receives one key's state as a run of long words; {@code words} is reused between calls. */
+interface LimiterStateSink {
+    void accept(String apiKey, long[] words, int length);
+}
+
+/**
+ * A limiter whose per-key state can be exported and restored. Times are epoch-based, so state
+ * restored after a restart carries on from where the previous process left off.
+ */
+interface StatefulRateLimiter extends RateLimiter {
+    /** Visits every key without blocking admission; keys added or removed concurrently may be missed. */
+    void exportState(LimiterStateSink sink);
+
+    void importState(String apiKey, long[] words, int length);
+
+    static void requireWords(int length, int expected) {
+        if (length != expected) {
+            throw new IllegalArgumentException("expected " + expected + " state words but got " + length);
+        }
+    }
 }
 
 enum RequestStatus {
@@ -53,239 +329,5334 @@ enum RequestStatus {
     THROTTLED
 }
 
-class TokenBucketRateLimiter implements RateLimiter {
-    private final Map<String, Bucket> userBuckets = new ConcurrentHashMap<>();
-    private final int capacity;
-    private final long refillRate; // Tokens refilled per second
-    private final Clock clock;
+/** Admission class of a request; lower classes are shed first under overload. */
+enum Priority {
+    CRITICAL,
+    NORMAL,
+    BATCH
+}
 
-    public TokenBucketRateLimiter(int capacity, long refillRate, Clock clock) {
-        this.capacity = capacity;
-        this.refillRate = refillRate;
-        this.clock = clock;
+/**
+ * Shares of each bucket held back for the higher {@link Priority} classes: NORMAL requests
+ * leave the critical share untouched and BATCH requests leave both. A share is held only while
+ * its class has been seen within {@code activeFor}; an idle class's share spills over to the
+ * classes below it.
+ */
+class PriorityReserve {
+    static final PriorityReserve NONE = new PriorityReserve(0, 0, Duration.ZERO);
+
+    final double criticalShare;
+    final double normalShare;
+    final long activeForMillis;
+
+    public PriorityReserve(double criticalShare, double normalShare, Duration activeFor) {
+        if (criticalShare < 0 || normalShare < 0 || criticalShare + normalShare > 1) {
+            throw new IllegalArgumentException("shares must be non-negative and sum to at most 1");
+        }
+        if (activeFor.isNegative()) {
+            throw new IllegalArgumentException("activeFor must not be negative");
+        }
+        this.criticalShare = criticalShare;
+        this.normalShare = normalShare;
+        this.activeForMillis = activeFor.toMillis();
     }
 
-    private static class Bucket {
-        final AtomicLong currentTokens;
-        long lastRefillTimeMillis;
+    boolean isNone() {
+        return criticalShare == 0 && normalShare == 0;
+    }
+}
+
+/**
+ * Where limiters read the time from: nanoseconds since the epoch as a primitive, so the hot
+ * path allocates nothing. Millisecond limiters use {@link #millis()}; persisted timestamps stay
+ * epoch-based and remain valid across restarts.
+ */
+@FunctionalInterface
+interface TickSource {
+    long nanos();
+
+    default long millis() {
+        return toMillis(nanos());
+    }
+
+    static long toMillis(long nanos) {
+        return Math.floorDiv(nanos, 1_000_000L);
+    }
+
+    /** High-resolution ticks from {@link System#nanoTime}, anchored to the wall clock once. */
+    static TickSource system() {
+        return NanoTickSource.SYSTEM;
+    }
+
+    /** Ticks refreshed every millisecond by a shared background thread; a volatile read per call. */
+    static TickSource coarse() {
+        return CoarseTickSource.Holder.SHARED;
+    }
+
+    /** Adapts a {@link Clock}. Allocates an {@link Instant} per reading, like the clock itself. */
+    static TickSource of(Clock clock) {
+        return () -> {
+            Instant now = clock.instant();
+            return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        };
+    }
+}
+
+final class NanoTickSource implements TickSource {
+    static final NanoTickSource SYSTEM = new NanoTickSource();
+
+    private final long epochNanosAtOrigin;
+    private final long nanoTimeAtOrigin;
+
+    private NanoTickSource() {
+        this.nanoTimeAtOrigin = System.nanoTime();
+        this.epochNanosAtOrigin = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+
+    @Override
+    public long nanos() {
+        return epochNanosAtOrigin + (System.nanoTime() - nanoTimeAtOrigin);
+    }
+}
+
+/**
+ * Trades resolution for cost: readers see a value at most one granularity old. Limiters whose
+ * rates need sub-granularity precision should use {@link TickSource#system()} instead.
+ */
+final class CoarseTickSource implements TickSource, AutoCloseable {
+    static final class Holder {
+        static final CoarseTickSource SHARED = new CoarseTickSource(Duration.ofMillis(1));
+    }
+
+    private final TickSource source = TickSource.system();
+    private final long granularityNanos;
+    private final Thread updater;
+    private volatile long nanos;
+    private volatile boolean closed;
+
+    public CoarseTickSource(Duration granularity) {
+        if (granularity.isNegative() || granularity.isZero()) {
+            throw new IllegalArgumentException("granularity must be positive");
+        }
+        this.granularityNanos = granularity.toNanos();
+        this.nanos = source.nanos();
+        this.updater = new Thread(this::run, "coarse-tick-source");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(granularityNanos);
+            nanos = source.nanos();
+        }
+    }
+
+    @Override
+    public long nanos() {
+        return nanos;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(updater);
+    }
+}
+
+/** Moves only when told to, for deterministic tests and trace replay. */
+final class ManualTickSource implements TickSource {
+    private final AtomicLong nanos;
+
+    public ManualTickSource(long startNanos) {
+        this.nanos = new AtomicLong(startNanos);
+    }
+
+    public ManualTickSource(Instant start) {
+        this(start.getEpochSecond() * 1_000_000_000L + start.getNano());
+    }
+
+    @Override
+    public long nanos() {
+        return nanos.get();
+    }
+
+    public void advance(Duration duration) {
+        advanceNanos(duration.toNanos());
+    }
+
+    public void advanceNanos(long delta) {
+        if (delta < 0) {
+            throw new IllegalArgumentException("time must not go backwards");
+        }
+        nanos.addAndGet(delta);
+    }
+
+    public void setNanos(long value) {
+        long previous = nanos.getAndAccumulate(value, Math::max);
+        if (value < previous) {
+            throw new IllegalArgumentException("time must not go backwards");
+        }
+    }
+}
+
+class KeyStatePolicy {
+    static final KeyStatePolicy UNBOUNDED = new KeyStatePolicy(Duration.ZERO, Integer.MAX_VALUE);
+
+    final long idleTtlMillis; // 0 keeps idle keys forever
+    final int maxKeys;
+
+    public KeyStatePolicy(Duration idleTtl, int maxKeys) {
+        if (idleTtl.isNegative()) {
+            throw new IllegalArgumentException("idleTtl must not be negative");
+        }
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be positive");
+        }
+        this.idleTtlMillis = idleTtl.toMillis();
+        this.maxKeys = maxKeys;
+    }
+
+    boolean isUnbounded() {
+        return idleTtlMillis == 0 && maxKeys == Integer.MAX_VALUE;
+    }
+}
+
+interface KeyStateMetrics {
+    long keyCount();
+
+    long expiredEvictions();
+
+    long capacityEvictions();
+
+    /** Rough bytes retained by the per-key state, or -1 if unknown. */
+    default long estimatedBytes() {
+        return -1;
+    }
+}
+
+/**
+ * Per-key limiter state with idle expiry and a soft cap on the number of keys.
+ *
+ * Idle keys are removed by a shared background sweeper that resumes a weakly consistent
+ * iterator where it left off, so each key costs O(1) amortized sweep work per TTL. When the
+ * cap is reached a new key evicts the least recently used of a small sample of existing keys.
+ * The TTL should exceed the limiter window: an evicted key starts again from a fresh state.
+ *
+ * maxKeys is a soft cap: a new key checks the size, evicts one sampled key and then inserts, so
+ * concurrent inserts can each pass the check and the store can exceed the cap by about one key
+ * per inserting thread.
+ *
+ * A remover marks an entry removed and then re-reads its access time, backing off if a caller
+ * touched it meanwhile; callers touch an entry and then check the mark, retrying the lookup if
+ * it is set. So an entry is never removed from under a caller that touched it after it was
+ * picked, and a caller never gets the state of an entry already removed. A caller that skips
+ * the touch because the entry is already stamped with its millisecond can still race an
+ * eviction; its update then counts as made just before the eviction.
+ */
+class KeyStateStore<S> implements KeyStateMetrics {
+    // Map node, entry and a short key string on a 64-bit JVM with compressed oops.
+    private static final int ENTRY_OVERHEAD_BYTES = 120;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    private static final int MIN_SWEEP_BATCH = 1024;
+    private static final int SWEEPS_PER_TTL = 4;
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "key-state-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Entry<S>> entries = new ConcurrentHashMap<>();
+    private final KeyStatePolicy policy;
+    private final TickSource ticks;
+    private final long entryBytes;
+    private final boolean tracksAccess;
+    private final LongAdder expiredEvictions = new LongAdder();
+    private final LongAdder capacityEvictions = new LongAdder();
+    private final ReentrantLock cursorLock = new ReentrantLock();
+    private Iterator<Entry<S>> cursor;
+
+    private static class Entry<S> {
+        final String key;
+        final S state;
+        volatile long lastAccessMillis;
+        volatile boolean removed;
+
+        Entry(String key, S state, long nowMillis) {
+            this.key = key;
+            this.state = state;
+            this.lastAccessMillis = nowMillis;
+        }
+    }
+
+    /** {@code stateBytes} is the rough heap footprint of one key's state object, for {@link #estimatedBytes}. */
+    public KeyStateStore(KeyStatePolicy policy, TickSource ticks, long stateBytes) {
+        this.policy = policy;
+        this.ticks = ticks;
+        this.entryBytes = ENTRY_OVERHEAD_BYTES + stateBytes;
+        this.tracksAccess = !policy.isUnbounded();
+        if (policy.idleTtlMillis > 0) {
+            long periodMs = Math.max(1, policy.idleTtlMillis / SWEEPS_PER_TTL);
+            SweepTask.schedule(this, periodMs);
+        }
+    }
+
+    public S computeIfAbsent(String key, Function<? super String, ? extends S> factory, long nowMillis) {
+        while (true) {
+            Entry<S> entry = entries.get(key);
+            if (entry == null) {
+                if (entries.size() >= policy.maxKeys) {
+                    evictOne();
+                }
+                entry = entries.computeIfAbsent(key, k -> new Entry<>(k, factory.apply(k), nowMillis));
+            } else if (tracksAccess && entry.lastAccessMillis != nowMillis) {
+                entry.lastAccessMillis = nowMillis;
+            }
+            if (!entry.removed) {
+                return entry.state;
+            }
+            Thread.onSpinWait(); // removed, or a remover is about to back off
+        }
+    }
+
+    /** Weakly consistent: runs alongside admission and may miss keys added or removed meanwhile. */
+    public void forEach(BiConsumer<String, S> action) {
+        for (Entry<S> entry : entries.values()) {
+            action.accept(entry.key, entry.state);
+        }
+    }
+
+    @Override
+    public long keyCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long expiredEvictions() {
+        return expiredEvictions.sum();
+    }
+
+    @Override
+    public long capacityEvictions() {
+        return capacityEvictions.sum();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return entries.size() * entryBytes;
+    }
+
+    private void evictOne() {
+        cursorLock.lock();
+        try {
+            if (entries.size() < policy.maxKeys) return; // another thread made room meanwhile
+            Entry<S> victim = null;
+            long victimAccessMillis = Long.MAX_VALUE;
+            for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+                Entry<S> candidate = nextEntry();
+                if (candidate == null) break;
+                if (entries.get(candidate.key) != candidate) continue; // already removed behind the cursor
+                long accessMillis = candidate.lastAccessMillis;
+                if (victim == null || accessMillis < victimAccessMillis) {
+                    victim = candidate;
+                    victimAccessMillis = accessMillis;
+                }
+            }
+            if (victim != null && remove(victim, victimAccessMillis)) {
+                capacityEvictions.increment();
+            }
+        } finally {
+            cursorLock.unlock();
+        }
+    }
+
+    private void sweep() {
+        cursorLock.lock();
+        try {
+            long expiredBefore = ticks.millis() - policy.idleTtlMillis;
+            int budget = Math.max(MIN_SWEEP_BATCH, entries.size() / SWEEPS_PER_TTL);
+            for (int i = 0; i < budget; i++) {
+                Entry<S> entry = nextEntry();
+                if (entry == null) break;
+                long accessMillis = entry.lastAccessMillis;
+                if (accessMillis < expiredBefore && remove(entry, accessMillis)) {
+                    expiredEvictions.increment();
+                }
+            }
+        } finally {
+            cursorLock.unlock();
+        }
+    }
+
+    // Caller holds cursorLock. Removes the entry unless it was touched after accessMillis was read.
+    private boolean remove(Entry<S> entry, long accessMillis) {
+        entry.removed = true;
+        if (entry.lastAccessMillis != accessMillis) {
+            entry.removed = false;
+            return false;
+        }
+        return entries.remove(entry.key, entry);
+    }
+
+    // Caller holds cursorLock. Wraps around once so a sweep that starts mid-map still sees every key.
+    private Entry<S> nextEntry() {
+        if (cursor == null || !cursor.hasNext()) {
+            cursor = entries.values().iterator();
+            if (!cursor.hasNext()) return null;
+        }
+        return cursor.next();
+    }
+
+    // Holds the store weakly so a discarded limiter does not keep its sweep task alive.
+    private static class SweepTask implements Runnable {
+        private final WeakReference<KeyStateStore<?>> storeRef;
+        private volatile ScheduledFuture<?> future;
+
+        private SweepTask(KeyStateStore<?> store) {
+            this.storeRef = new WeakReference<>(store);
+        }
+
+        static void schedule(KeyStateStore<?> store, long periodMs) {
+            SweepTask task = new SweepTask(store);
+            task.future = SWEEPER.scheduleAtFixedRate(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            KeyStateStore<?> store = storeRef.get();
+            if (store == null) {
+                ScheduledFuture<?> scheduled = future;
+                if (scheduled != null) scheduled.cancel(false);
+                return;
+            }
+            store.sweep();
+        }
+    }
+}
+
+/**
+ * Open-addressing table of fixed 16-byte slots ([key hash][state word]) in direct memory, for
+ * limiters whose per-key state packs into one long. Slots are claimed and updated with CAS, so
+ * there is no per-key object, String or map node on the heap.
+ *
+ * Keys are identified only by a 62-bit hash tag: two keys with the same tag share state (about a
+ * 3e-4 chance across 50M keys). A slot is claimed in two steps, pending tag then ready tag, so
+ * the initial state is visible before any other thread can match the key. Slots are never
+ * freed, so size the table for the expected key count.
+ *
+ * A table created with {@link #mapped} lives in a memory-mapped file. Every state update lands
+ * in the page cache directly, {@link #checkpoint} forces it to disk, and a restarted process
+ * maps the same file and resumes after one pass over the slots, which frees any a crash left
+ * half claimed.
+ */
+class OffHeapStateTable implements KeyStateMetrics {
+    static final int SLOT_BYTES = 16;
+    private static final int SLOTS_PER_SEGMENT_SHIFT = 26; // 1 GiB per ByteBuffer
+    private static final int MAX_PROBES = 64;
+    private static final long FILE_MAGIC = 0x524c_4f46_4648_5431L; // "RLOFFHT1"
+    private static final int HEADER_BYTES = 64; // magic, slot bits, key count
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] segments;
+    private final MappedByteBuffer header; // null unless file backed
+    private final int segmentShift;
+    private final long slotMask;
+    private final LongAdder keyCount = new LongAdder();
+
+    public OffHeapStateTable(long expectedKeys) {
+        this(slotsFor(expectedKeys), null);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(SLOT_BYTES << segmentShift).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private OffHeapStateTable(int slotBits, MappedByteBuffer header) {
+        this.slotMask = (1L << slotBits) - 1;
+        this.segmentShift = Math.min(slotBits, SLOTS_PER_SEGMENT_SHIFT);
+        this.segments = new ByteBuffer[1 << (slotBits - segmentShift)];
+        this.header = header;
+    }
+
+    /** Maps {@code file}, creating it if needed; an existing file must have been created for the same size. */
+    public static OffHeapStateTable mapped(Path file, long expectedKeys) throws IOException {
+        int slotBits = slotsFor(expectedKeys);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean existing = channel.size() > 0;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.nativeOrder());
+            if (existing) {
+                if (header.getLong(0) != FILE_MAGIC) {
+                    throw new IOException(file + " is not an off-heap state table");
+                }
+                if (header.getLong(8) != slotBits) {
+                    throw new IOException(file + " was created for " + (1L << header.getLong(8)) + " slots");
+                }
+            } else {
+                header.putLong(0, FILE_MAGIC);
+                header.putLong(8, slotBits);
+            }
+
+            OffHeapStateTable table = new OffHeapStateTable(slotBits, header);
+            long segmentBytes = (long) SLOT_BYTES << table.segmentShift;
+            for (int i = 0; i < table.segments.length; i++) {
+                table.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * segmentBytes, segmentBytes)
+                        .order(ByteOrder.nativeOrder());
+            }
+            if (existing) {
+                table.recover();
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Frees slots left pending by a process that died mid-claim, which would otherwise make
+     * every lookup probing them wait forever, and recounts the keys.
+     */
+    private void recover() {
+        long keys = 0;
+        for (long slot = 0; slot <= slotMask; slot++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            long owner = (long) LONGS.getVolatile(segment, offset);
+            if ((owner & 1) != 0) {
+                keys++;
+            } else if (owner != 0) {
+                LONGS.setVolatile(segment, offset + Long.BYTES, 0L);
+                LONGS.setVolatile(segment, offset, 0L);
+            }
+        }
+        keyCount.add(keys);
+    }
+
+    /** Flushes a file-backed table to disk; a no-op for tables in anonymous memory. */
+    public void checkpoint() {
+        if (header == null) return;
+        for (ByteBuffer segment : segments) {
+            ((MappedByteBuffer) segment).force();
+        }
+        header.putLong(16, keyCount.sum());
+        header.force();
+    }
+
+    // Power of two at a load factor of at most 0.75.
+    private static int slotsFor(long expectedKeys) {
+        if (expectedKeys <= 0) {
+            throw new IllegalArgumentException("expectedKeys must be positive");
+        }
+        long slots = Math.max(16, expectedKeys + expectedKeys / 3);
+        int bits = 64 - Long.numberOfLeadingZeros(slots - 1);
+        if (bits > 40) {
+            throw new IllegalArgumentException("expectedKeys is too large: " + expectedKeys);
+        }
+        return bits;
+    }
+
+    /** Returns the slot holding the key's state, claiming an empty one seeded with {@code initialState} on first use. */
+    public long slotFor(String key, long initialState) {
+        long hash = hash(key);
+        long ready = hash | 3;        // odd and never 0
+        long pending = ready ^ 1;     // even and never 0
+        long slot = hash & slotMask;
+        for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & slotMask) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            long owner = (long) LONGS.getVolatile(segment, offset);
+            if (owner == 0 && LONGS.compareAndSet(segment, offset, 0L, pending)) {
+                LONGS.setVolatile(segment, offset + Long.BYTES, initialState);
+                LONGS.setVolatile(segment, offset, ready);
+                keyCount.increment();
+                return slot;
+            }
+            while (owner == 0 || owner == pending) {
+                Thread.onSpinWait(); // a claim is in flight; wait to see whose key it is
+                owner = (long) LONGS.getVolatile(segment, offset);
+            }
+            if (owner == ready) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("off-heap state table is full");
+    }
+
+    public long load(long slot) {
+        return (long) LONGS.getVolatile(segment(slot), offset(slot) + Long.BYTES);
+    }
+
+    public boolean compareAndSet(long slot, long expect, long update) {
+        return LONGS.compareAndSet(segment(slot), offset(slot) + Long.BYTES, expect, update);
+    }
+
+    @Override
+    public long keyCount() {
+        return keyCount.sum();
+    }
+
+    @Override
+    public long expiredEvictions() {
+        return 0;
+    }
+
+    @Override
+    public long capacityEvictions() {
+        return 0;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (ByteBuffer segment : segments) {
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> segmentShift)];
+    }
+
+    private int offset(long slot) {
+        return (int) (slot & ((1L << segmentShift) - 1)) * SLOT_BYTES;
+    }
+
+    // FNV-1a over the chars, then a murmur3 finalizer.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+class TokenBucketRateLimiter implements StatefulRateLimiter {
+    private final KeyStateStore<Bucket> userBuckets;
+    private final int capacity;
+    private final long refillRate; // Tokens refilled per second
+    private final TickSource ticks;
+    private final PriorityReserve reserve;
+    private final long criticalReserve;
+    private final long normalReserve;
+
+    public TokenBucketRateLimiter(int capacity, long refillRate, Clock clock) {
+        this(capacity, refillRate, TickSource.of(clock));
+    }
+
+    public TokenBucketRateLimiter(int capacity, long refillRate, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(capacity, refillRate, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public TokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks) {
+        this(capacity, refillRate, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public TokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this(capacity, refillRate, ticks, keyStatePolicy, PriorityReserve.NONE);
+    }
+
+    public TokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks, KeyStatePolicy keyStatePolicy,
+                                  PriorityReserve reserve) {
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+        this.ticks = ticks;
+        this.userBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 56); // Bucket and its AtomicLong
+        this.reserve = reserve;
+        this.criticalReserve = Math.round(capacity * reserve.criticalShare);
+        this.normalReserve = Math.round(capacity * reserve.normalShare);
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userBuckets;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[2];
+        userBuckets.forEach((apiKey, bucket) -> {
+            synchronized (bucket) {
+                words[0] = bucket.currentTokens.get();
+                words[1] = bucket.lastRefillTimeMillis;
+            }
+            sink.accept(apiKey, words, 2);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 2);
+        long nowMillis = ticks.millis();
+        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new Bucket(capacity, nowMillis), nowMillis);
+
+        synchronized (bucket) {
+            bucket.currentTokens.set(Math.min(words[0], capacity));
+            bucket.lastRefillTimeMillis = words[1];
+        }
+    }
+
+    private static class Bucket {
+        final AtomicLong currentTokens;
+        long lastRefillTimeMillis;
+        long[] lastSeenMillis; // per Priority, allocated on the first request under a reserve
+
+        Bucket(int initialTokens, long startTimeMillis) {
+            this.currentTokens = new AtomicLong(initialTokens);
+            this.lastRefillTimeMillis = startTimeMillis;
+        }
+    }
+
+    /** Untagged requests are admitted as {@link Priority#NORMAL}. */
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return tryAcquire(apiKey, permits, Priority.NORMAL);
+    }
+
+    public RequestStatus tryAcquire(String apiKey, int permits, Priority priority) {
+        return acquire(apiKey, permits, false, null, priority) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null, Priority.NORMAL);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        return decide(apiKey, permits, Priority.NORMAL, decision);
+    }
+
+    /** Remaining quota is reported as what this class may still take. */
+    public RateLimitDecision decide(String apiKey, int permits, Priority priority, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision, priority);
+        return decision;
+    }
+
+    @Override
+    public void release(String apiKey, int permits) {
+        RateLimiter.requirePositive(permits);
+        long nowMillis = ticks.millis();
+        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new Bucket(capacity, nowMillis), nowMillis);
+
+        synchronized (bucket) {
+            refillTokens(bucket, nowMillis);
+            bucket.currentTokens.set(Math.min(capacity, bucket.currentTokens.get() + permits));
+        }
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision, Priority priority) {
+        RateLimiter.requirePositive(permits);
+        long nowMillis = ticks.millis();
+        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new Bucket(capacity, nowMillis), nowMillis);
+
+        synchronized (bucket) {
+            refillTokens(bucket, nowMillis);
+
+            long floor = reserve.isNone() ? 0 : reservedFloor(bucket, priority, nowMillis);
+            int granted = RateLimiter.grantable(bucket.currentTokens.get() - floor, permits, partial);
+            if (granted > 0) {
+                bucket.currentTokens.addAndGet(-granted);
+            }
+            if (decision != null) {
+                describe(bucket, nowMillis, permits, granted, floor, decision);
+            }
+            return granted;
+        }
+    }
+
+    // Caller holds the bucket's monitor. Marks the class as seen and returns the tokens it must leave behind.
+    private long reservedFloor(Bucket bucket, Priority priority, long nowMillis) {
+        if (bucket.lastSeenMillis == null) {
+            bucket.lastSeenMillis = new long[Priority.values().length];
+            Arrays.fill(bucket.lastSeenMillis, Long.MIN_VALUE);
+        }
+        bucket.lastSeenMillis[priority.ordinal()] = nowMillis;
+        long floor = 0;
+        if (priority != Priority.CRITICAL && isActive(bucket, Priority.CRITICAL, nowMillis)) {
+            floor += criticalReserve;
+        }
+        if (priority == Priority.BATCH && isActive(bucket, Priority.NORMAL, nowMillis)) {
+            floor += normalReserve;
+        }
+        return floor;
+    }
+
+    private boolean isActive(Bucket bucket, Priority priority, long nowMillis) {
+        long seenMillis = bucket.lastSeenMillis[priority.ordinal()];
+        return seenMillis != Long.MIN_VALUE && nowMillis - seenMillis <= reserve.activeForMillis;
+    }
+
+    // Caller holds the bucket's monitor.
+    private void describe(Bucket bucket, long nowMillis, int permits, int granted, long floor, RateLimitDecision decision) {
+        long tokens = bucket.currentTokens.get();
+        long available = tokens - floor;
+        long sinceRefillMs = nowMillis - bucket.lastRefillTimeMillis;
+        long resetNanos = refillRate <= 0 ? (tokens < capacity ? RateLimiter.NEVER : 0)
+                : millisToNanos((long) Math.ceil((capacity - tokens) * 1000.0 / refillRate) - sinceRefillMs);
+        long retryAfterNanos;
+        if (granted > 0) {
+            retryAfterNanos = 0;
+        } else if (permits > capacity || refillRate <= 0) {
+            retryAfterNanos = RateLimiter.NEVER;
+        } else {
+            retryAfterNanos = millisToNanos(Math.max(1, (long) Math.ceil((permits - available) * 1000.0 / refillRate) - sinceRefillMs));
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, Math.max(0, available), resetNanos, retryAfterNanos);
+    }
+
+    private static long millisToNanos(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+
+    private void refillTokens(Bucket bucket, long nowMillis) {
+        long elapsedTimeMs = nowMillis - bucket.lastRefillTimeMillis;
+        if (refillRate <= 0) return;
+
+        long tokensToAdd = (long) (elapsedTimeMs * (refillRate / 1000.0));
+
+        if (tokensToAdd > 0) {
+            long newTokens = Math.min(bucket.currentTokens.get() + tokensToAdd, capacity);
+            bucket.currentTokens.set(newTokens);
+
+            long timeAdvanced = (long) (tokensToAdd * (1000.0 / refillRate));
+            bucket.lastRefillTimeMillis += timeAdvanced;
+        }
+    }
+}
+
+class LockFreeTokenBucketRateLimiter implements StatefulRateLimiter {
+    // Per-key state is a single word: [refill period index : 42 bits][tokens : 22 bits]
+    static final int TOKEN_BITS = 22;
+    static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    static final int MAX_CAPACITY = (int) TOKEN_MASK;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    static final long MAX_REFILL_RATE = Long.MAX_VALUE / NANOS_PER_SECOND; // keeps refillPeriod's nanoOfSecond * refillRate in range
+
+    private final KeyStateStore<AtomicLong> userBuckets;
+    private final int capacity;
+    private final long refillRate; // Tokens refilled per second
+    private final TickSource ticks;
+
+    public LockFreeTokenBucketRateLimiter(int capacity, long refillRate, Clock clock) {
+        this(capacity, refillRate, TickSource.of(clock));
+    }
+
+    public LockFreeTokenBucketRateLimiter(int capacity, long refillRate, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(capacity, refillRate, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public LockFreeTokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks) {
+        this(capacity, refillRate, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public LockFreeTokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be in [1, " + MAX_CAPACITY + "]");
+        }
+        if (refillRate < 0 || refillRate > MAX_REFILL_RATE) {
+            throw new IllegalArgumentException("refillRate must be in [0, " + MAX_REFILL_RATE + "]");
+        }
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+        this.ticks = ticks;
+        this.userBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userBuckets;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[1];
+        userBuckets.forEach((apiKey, bucket) -> {
+            words[0] = bucket.get();
+            sink.accept(apiKey, words, 1);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 1);
+        long nowNanos = ticks.nanos();
+        long period = refillPeriod(nowNanos, refillRate);
+        // A stamp from a node ahead of us, or from a limiter with a higher rate, would hold off refill.
+        long stamp = refillRate == 0 ? period : Math.min(periodOf(words[0], period), period);
+        long restored = pack(Math.min(tokens(words[0]), capacity), stamp);
+        userBuckets.computeIfAbsent(apiKey, k -> new AtomicLong(), TickSource.toMillis(nowNanos)).set(restored);
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    @Override
+    public void release(String apiKey, int permits) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        long period = refillPeriod(nowNanos, refillRate);
+        AtomicLong bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new AtomicLong(pack(capacity, period)), TickSource.toMillis(nowNanos));
+
+        while (true) {
+            long current = bucket.get();
+            long refilled = refill(current, period, capacity, refillRate);
+            long restored = pack(Math.min(capacity, tokens(refilled) + permits), refilled >>> TOKEN_BITS);
+            if (restored == current || bucket.compareAndSet(current, restored)) {
+                return;
+            }
+        }
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        long period = refillPeriod(nowNanos, refillRate);
+        AtomicLong bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new AtomicLong(pack(capacity, period)), TickSource.toMillis(nowNanos));
+
+        while (true) {
+            long current = bucket.get();
+            long refilled = refill(current, period, capacity, refillRate);
+            int granted = RateLimiter.grantable(tokens(refilled), permits, partial);
+            if (granted == 0) {
+                if (decision != null) {
+                    describe(refilled, period, nowNanos, permits, 0, decision);
+                }
+                return 0;
+            }
+            if (bucket.compareAndSet(current, refilled - granted)) {
+                if (decision != null) {
+                    describe(refilled - granted, period, nowNanos, permits, granted, decision);
+                }
+                return granted;
+            }
+        }
+    }
+
+    // Describes the state this call read or wrote, so the decision matches the CAS that decided it.
+    private void describe(long state, long period, long nowNanos, int permits, int granted, RateLimitDecision decision) {
+        long tokens = tokens(state);
+        long stamp = periodOf(state, period);
+        long resetNanos;
+        long retryAfterNanos;
+        if (refillRate == 0) {
+            resetNanos = tokens < capacity ? RateLimiter.NEVER : 0;
+            retryAfterNanos = granted > 0 ? 0 : RateLimiter.NEVER;
+        } else {
+            resetNanos = nanosUntilPeriod(stamp + capacity - tokens, nowNanos, refillRate);
+            retryAfterNanos = granted > 0 ? 0 : permits > capacity ? RateLimiter.NEVER
+                    : nanosUntilPeriod(stamp + permits - tokens, nowNanos, refillRate);
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, tokens, resetNanos, retryAfterNanos);
+    }
+
+    /**
+     * Number of whole refill periods (1 / refillRate seconds) since the epoch. Tokens are
+     * credited whenever this index advances, so no fractional refill time is ever lost.
+     */
+    static long refillPeriod(long nowNanos, long refillRate) {
+        long epochSecond = Math.floorDiv(nowNanos, NANOS_PER_SECOND);
+        long nanoOfSecond = Math.floorMod(nowNanos, NANOS_PER_SECOND);
+        return epochSecond * refillRate + nanoOfSecond * refillRate / NANOS_PER_SECOND;
+    }
+
+    /**
+     * The period index is stored modulo 2^42 and compared as a signed difference. A stamp up to
+     * one second ahead was written by a racing thread with a slightly later clock reading and is
+     * left alone, so tokens never refill backwards. A stamp further ahead is an old one that has
+     * wrapped after more than 2^41 idle periods, and the key refills to capacity. Only a key idle
+     * for within a second (or one bucket's worth of periods) of a multiple of 2^42 periods is
+     * refilled short, and catches up normally from there.
+     */
+    static long refill(long state, long period, int capacity, long refillRate) {
+        long elapsed = ((period - (state >>> TOKEN_BITS)) << TOKEN_BITS) >> TOKEN_BITS;
+        if (elapsed > 0) return pack(Math.min(capacity, tokens(state) + elapsed), period);
+        return elapsed < -refillRate ? pack(capacity, period) : state;
+    }
+
+    /** Nanos from now until {@link #refillPeriod} reaches {@code targetPeriod}. */
+    static long nanosUntilPeriod(long targetPeriod, long nowNanos, long refillRate) {
+        long second = targetPeriod / refillRate;
+        long nano = (targetPeriod % refillRate * NANOS_PER_SECOND + refillRate - 1) / refillRate;
+        return Math.max(0, (second - Math.floorDiv(nowNanos, NANOS_PER_SECOND)) * NANOS_PER_SECOND
+                + nano - Math.floorMod(nowNanos, NANOS_PER_SECOND));
+    }
+
+    /** Full-width period index of a state stamped no more than 2^41 periods away from {@code period}. */
+    static long periodOf(long state, long period) {
+        return period + (((state >>> TOKEN_BITS) - period) << TOKEN_BITS >> TOKEN_BITS);
+    }
+
+    static long pack(long tokens, long period) {
+        return (period << TOKEN_BITS) | tokens;
+    }
+
+    static long tokens(long state) {
+        return state & TOKEN_MASK;
+    }
+}
+
+/**
+ * Generic cell rate algorithm: a token bucket of the same capacity and rate whose per-key
+ * state is one word, the theoretical arrival time (TAT) of the next permit. A call is admitted
+ * if the TAT after taking its permits is at most capacity emission intervals ahead of now,
+ * which is a single CAS with no refill arithmetic. The rate is rounded to a whole number of
+ * nanoseconds per permit.
+ */
+class GcraRateLimiter implements StatefulRateLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // A zero TAT is in the past for any clock, so new keys start with a full burst.
+    private static final Function<String, AtomicLong> NEW_STATE = k -> new AtomicLong();
+
+    private final KeyStateStore<AtomicLong> userTats;
+    private final int capacity;
+    private final long refillRate; // Tokens refilled per second
+    private final long emissionNanos;
+    private final long toleranceNanos;
+    private final TickSource ticks;
+
+    public GcraRateLimiter(int capacity, long refillRate, Clock clock) {
+        this(capacity, refillRate, TickSource.of(clock));
+    }
+
+    public GcraRateLimiter(int capacity, long refillRate, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(capacity, refillRate, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public GcraRateLimiter(int capacity, long refillRate, TickSource ticks) {
+        this(capacity, refillRate, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public GcraRateLimiter(int capacity, long refillRate, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (refillRate < 0) {
+            throw new IllegalArgumentException("refillRate must not be negative");
+        }
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+        this.emissionNanos = refillRate == 0 ? 1 : Math.max(1, NANOS_PER_SECOND / refillRate);
+        this.toleranceNanos = emissionNanos * capacity;
+        this.ticks = ticks;
+        this.userTats = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userTats;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[1];
+        userTats.forEach((apiKey, tat) -> {
+            words[0] = tat.get();
+            sink.accept(apiKey, words, 1);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 1);
+        long tickNanos = ticks.nanos();
+        // Never further ahead than a drained bucket, whatever rate the file was written with.
+        long restored = Math.min(words[0], arrivalTime(tickNanos) + toleranceNanos);
+        userTats.computeIfAbsent(apiKey, NEW_STATE, TickSource.toMillis(tickNanos)).set(restored);
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    @Override
+    public void release(String apiKey, int permits) {
+        RateLimiter.requirePositive(permits);
+        long tickNanos = ticks.nanos();
+        long nowNanos = arrivalTime(tickNanos);
+        AtomicLong tat = userTats.computeIfAbsent(apiKey, NEW_STATE, TickSource.toMillis(tickNanos));
+        long credit = Math.min(permits, capacity) * emissionNanos;
+
+        while (true) {
+            long current = tat.get();
+            if (current <= nowNanos || tat.compareAndSet(current, Math.max(nowNanos, current - credit))) {
+                return;
+            }
+        }
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long tickNanos = ticks.nanos();
+        long nowNanos = arrivalTime(tickNanos);
+        AtomicLong tat = userTats.computeIfAbsent(apiKey, NEW_STATE, TickSource.toMillis(tickNanos));
+
+        while (true) {
+            long current = tat.get();
+            long base = Math.max(current, nowNanos);
+            long available = (nowNanos + toleranceNanos - base) / emissionNanos;
+            int granted = RateLimiter.grantable(available, permits, partial);
+            if (granted == 0) {
+                if (decision != null) {
+                    describe(base, nowNanos, permits, 0, decision);
+                }
+                return 0;
+            }
+            long next = base + granted * emissionNanos;
+            if (tat.compareAndSet(current, next)) {
+                if (decision != null) {
+                    describe(next, nowNanos, permits, granted, decision);
+                }
+                return granted;
+            }
+        }
+    }
+
+    // Without refill time stands still, so the TAT simply counts the permits taken.
+    private long arrivalTime(long tickNanos) {
+        return refillRate == 0 ? 0 : tickNanos;
+    }
+
+    private void describe(long tat, long nowNanos, int permits, int granted, RateLimitDecision decision) {
+        long remaining = (nowNanos + toleranceNanos - tat) / emissionNanos;
+        long resetNanos = tat <= nowNanos ? 0 : refillRate == 0 ? RateLimiter.NEVER : tat - nowNanos;
+        long retryAfterNanos;
+        if (granted > 0) {
+            retryAfterNanos = 0;
+        } else if (permits > capacity || refillRate == 0) {
+            retryAfterNanos = RateLimiter.NEVER;
+        } else {
+            retryAfterNanos = Math.max(1, tat + (long) permits * emissionNanos - toleranceNanos - nowNanos);
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, remaining, resetNanos, retryAfterNanos);
+    }
+}
+
+class LeakyBucketRateLimiter implements StatefulRateLimiter {
+    private final KeyStateStore<Bucket> userBuckets;
+    private final int capacity;
+    private final int leakRate; // Requests leaked (processed) per second
+    private final long windowUnitNanos = TimeUnit.SECONDS.toNanos(1);
+    private final TickSource ticks;
+
+    public LeakyBucketRateLimiter(int capacity, int leakRate, Clock clock) {
+        this(capacity, leakRate, TickSource.of(clock));
+    }
+
+    public LeakyBucketRateLimiter(int capacity, int leakRate, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(capacity, leakRate, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public LeakyBucketRateLimiter(int capacity, int leakRate, TickSource ticks) {
+        this(capacity, leakRate, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public LeakyBucketRateLimiter(int capacity, int leakRate, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.capacity = capacity;
+        this.leakRate = leakRate;
+        this.ticks = ticks;
+        this.userBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 40); // Bucket and its AtomicInteger
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userBuckets;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[2];
+        userBuckets.forEach((apiKey, bucket) -> {
+            synchronized (bucket) {
+                words[0] = bucket.waterLevel.get();
+                words[1] = bucket.lastLeakNanos;
+            }
+            sink.accept(apiKey, words, 2);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 2);
+        long nowNanos = ticks.nanos();
+        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new Bucket(nowNanos), TickSource.toMillis(nowNanos));
+
+        synchronized (bucket) {
+            bucket.waterLevel.set((int) Math.min(words[0], capacity));
+            bucket.lastLeakNanos = words[1];
+        }
+    }
+
+    private static class Bucket {
+        final AtomicInteger waterLevel = new AtomicInteger(0);
+        volatile long lastLeakNanos;
+
+        Bucket(long initialNanos) {
+            this.lastLeakNanos = initialNanos;
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
+                k -> new Bucket(nowNanos), TickSource.toMillis(nowNanos));
+
+        synchronized (bucket) {
+            leakRequests(bucket, nowNanos);
+
+            int granted = RateLimiter.grantable(capacity - bucket.waterLevel.get(), permits, partial);
+            if (granted > 0) {
+                bucket.waterLevel.addAndGet(granted);
+            }
+            if (decision != null) {
+                describe(bucket, nowNanos, permits, granted, decision);
+            }
+            return granted;
+        }
+    }
+
+    // Caller holds the bucket's monitor.
+    private void describe(Bucket bucket, long nowNanos, int permits, int granted, RateLimitDecision decision) {
+        long level = bucket.waterLevel.get();
+        long sinceLeakNanos = nowNanos - bucket.lastLeakNanos;
+        long resetNanos = leakRate <= 0 ? (level > 0 ? RateLimiter.NEVER : 0)
+                : Math.max(0, (long) Math.ceil(level * (double) windowUnitNanos / leakRate) - sinceLeakNanos);
+        long retryAfterNanos;
+        if (granted > 0) {
+            retryAfterNanos = 0;
+        } else if (permits > capacity || leakRate <= 0) {
+            retryAfterNanos = RateLimiter.NEVER;
+        } else {
+            long overflow = level + permits - capacity;
+            retryAfterNanos = Math.max(1, (long) Math.ceil(overflow * (double) windowUnitNanos / leakRate) - sinceLeakNanos);
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, capacity - level, resetNanos, retryAfterNanos);
+    }
+
+    private void leakRequests(Bucket bucket, long nowNanos) {
+        long elapsedTime = nowNanos - bucket.lastLeakNanos;
+        int leakedAmount = (int) Math.min(Integer.MAX_VALUE, (elapsedTime / (double) windowUnitNanos) * leakRate);
+
+        if (leakedAmount > 0) {
+            if (leakedAmount >= bucket.waterLevel.get()) {
+                // Drained: idle time must not bank credit for later leaks
+                bucket.waterLevel.set(0);
+                bucket.lastLeakNanos = nowNanos;
+            } else {
+                // Advance only by the time those leaks took, rounded up, so the fraction carries over
+                bucket.waterLevel.addAndGet(-leakedAmount);
+                bucket.lastLeakNanos += (leakedAmount * windowUnitNanos + leakRate - 1) / leakRate;
+            }
+        }
+    }
+}
+
+class FixedWindowRateLimiter implements StatefulRateLimiter {
+    private final KeyStateStore<Window> userWindows;
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    public FixedWindowRateLimiter(int limit, long windowSizeMs, Clock clock) {
+        this(limit, windowSizeMs, TickSource.of(clock));
+    }
+
+    public FixedWindowRateLimiter(int limit, long windowSizeMs, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(limit, windowSizeMs, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public FixedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        this(limit, windowSizeMs, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public FixedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.userWindows = new KeyStateStore<>(keyStatePolicy, ticks, 40); // Window and its AtomicInteger
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userWindows;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[2];
+        userWindows.forEach((apiKey, window) -> {
+            synchronized (window) {
+                words[0] = window.requestCount.get();
+                words[1] = window.windowStartTime;
+            }
+            sink.accept(apiKey, words, 2);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 2);
+        long currentTimeMillis = ticks.millis();
+        Window window = userWindows.computeIfAbsent(apiKey,
+                k -> new Window(currentTimeMillis), currentTimeMillis);
+
+        synchronized (window) {
+            window.requestCount.set((int) Math.min(words[0], limit));
+            window.windowStartTime = words[1];
+        }
+    }
+
+    private static class Window {
+        final AtomicInteger requestCount = new AtomicInteger(0);
+        volatile long windowStartTime;
+
+        Window(long startTime) {
+            this.windowStartTime = startTime;
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long currentTimeMillis = ticks.millis();
+        Window window = userWindows.computeIfAbsent(apiKey,
+                k -> new Window(currentTimeMillis), currentTimeMillis);
+
+        synchronized (window) {
+            if (currentTimeMillis - window.windowStartTime >= windowSizeMs) {
+                window.windowStartTime = currentTimeMillis;
+                window.requestCount.set(0);
+            }
+
+            int granted = RateLimiter.grantable(limit - window.requestCount.get(), permits, partial);
+            if (granted > 0) {
+                window.requestCount.addAndGet(granted);
+            }
+            if (decision != null) {
+                long resetNanos = TimeUnit.MILLISECONDS.toNanos(window.windowStartTime + windowSizeMs - currentTimeMillis);
+                long retryAfterNanos = granted > 0 ? 0 : permits > limit ? RateLimiter.NEVER : resetNanos;
+                decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED,
+                        limit - window.requestCount.get(), resetNanos, retryAfterNanos);
+            }
+            return granted;
+        }
+    }
+}
+
+/**
+ * Fixed window aligned to the epoch, so every key's windows share the same boundaries and a
+ * window never restarts at an arbitrary request. Per-key state is a single word,
+ * [window index : 42 bits][count : 22 bits]; a count stamped with an older window reads as
+ * zero, so rollover needs no reset and admission is one CAS loop with no lock. State is
+ * exported in {@link FixedWindowRateLimiter}'s format, count then window start.
+ */
+class AlignedFixedWindowRateLimiter implements StatefulRateLimiter {
+    static final int COUNT_BITS = 22;
+    static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    static final int MAX_LIMIT = (int) COUNT_MASK;
+    private static final long WINDOW_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+    private static final Function<String, AtomicLong> NEW_STATE = k -> new AtomicLong();
+
+    private final KeyStateStore<AtomicLong> userWindows;
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    public AlignedFixedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        this(limit, windowSizeMs, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public AlignedFixedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        if (limit < 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be in [0, " + MAX_LIMIT + "]");
+        }
+        if (windowSizeMs <= 0) {
+            throw new IllegalArgumentException("windowSizeMs must be positive");
+        }
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.userWindows = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userWindows;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[2];
+        long window = Math.floorDiv(ticks.millis(), windowSizeMs);
+        userWindows.forEach((apiKey, state) -> {
+            long word = state.get();
+            if (word >>> COUNT_BITS != (window & WINDOW_MASK)) return; // stale windows carry nothing
+            words[0] = word & COUNT_MASK;
+            words[1] = window * windowSizeMs;
+            sink.accept(apiKey, words, 2);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 2);
+        long nowMillis = ticks.millis();
+        long window = Math.floorDiv(words[1], windowSizeMs);
+        if (window != Math.floorDiv(nowMillis, windowSizeMs)) return;
+        userWindows.computeIfAbsent(apiKey, NEW_STATE, nowMillis)
+                .set(pack(window, Math.min(words[0], limit)));
+    }
+
+    private static long pack(long window, long count) {
+        return (window & WINDOW_MASK) << COUNT_BITS | count;
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long nowMillis = ticks.millis();
+        long window = Math.floorDiv(nowMillis, windowSizeMs);
+        AtomicLong state = userWindows.computeIfAbsent(apiKey, NEW_STATE, nowMillis);
+
+        while (true) {
+            long current = state.get();
+            long count = current >>> COUNT_BITS == (window & WINDOW_MASK) ? current & COUNT_MASK : 0;
+            int granted = RateLimiter.grantable(limit - count, permits, partial);
+            if (granted == 0 || state.compareAndSet(current, pack(window, count + granted))) {
+                if (decision != null) {
+                    describe(window, nowMillis, limit - count - granted, permits, granted, limit, windowSizeMs, decision);
+                }
+                return granted;
+            }
+        }
+    }
+
+    static void describe(long window, long nowMillis, long remaining, int permits, int granted, int limit,
+                         long windowSizeMs, RateLimitDecision decision) {
+        long resetNanos = TimeUnit.MILLISECONDS.toNanos((window + 1) * windowSizeMs - nowMillis);
+        long retryAfterNanos = granted > 0 ? 0 : permits > limit ? RateLimiter.NEVER : resetNanos;
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, remaining, resetNanos, retryAfterNanos);
+    }
+}
+
+/**
+ * Epoch-aligned fixed window whose counters all live in one map per window. The first request
+ * of a new window swaps in an empty map, so rollover drops every key's state at once, in O(1),
+ * and keys quiet for a window cost nothing; no idle sweeping is needed. A request racing the
+ * rollover may be counted in the window that just closed.
+ */
+class SharedWindowRateLimiter implements StatefulRateLimiter, KeyStateMetrics {
+    private static final Function<String, AtomicInteger> NEW_COUNT = k -> new AtomicInteger();
+
+    private final AtomicReference<Generation> generation;
+    private final LongAdder droppedKeys = new LongAdder();
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    private static final class Generation {
+        final long window;
+        final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+
+        Generation(long window) {
+            this.window = window;
+        }
+    }
+
+    public SharedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        if (windowSizeMs <= 0) {
+            throw new IllegalArgumentException("windowSizeMs must be positive");
+        }
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.generation = new AtomicReference<>(new Generation(Math.floorDiv(ticks.millis(), windowSizeMs)));
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return this;
+    }
+
+    @Override
+    public long keyCount() {
+        return generation.get().counts.size();
+    }
+
+    /** Keys dropped with their window at rollover. */
+    @Override
+    public long expiredEvictions() {
+        return droppedKeys.sum();
+    }
+
+    @Override
+    public long capacityEvictions() {
+        return 0;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[2];
+        Generation current = generation(Math.floorDiv(ticks.millis(), windowSizeMs));
+        current.counts.forEach((apiKey, count) -> {
+            words[0] = count.get();
+            words[1] = current.window * windowSizeMs;
+            sink.accept(apiKey, words, 2);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 2);
+        Generation current = generation(Math.floorDiv(ticks.millis(), windowSizeMs));
+        if (Math.floorDiv(words[1], windowSizeMs) != current.window) return;
+        current.counts.computeIfAbsent(apiKey, NEW_COUNT).set((int) Math.min(words[0], limit));
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long nowMillis = ticks.millis();
+        Generation current = generation(Math.floorDiv(nowMillis, windowSizeMs));
+        AtomicInteger count = current.counts.computeIfAbsent(apiKey, NEW_COUNT);
+
+        while (true) {
+            int used = count.get();
+            int granted = RateLimiter.grantable(limit - used, permits, partial);
+            if (granted == 0 || count.compareAndSet(used, used + granted)) {
+                if (decision != null) {
+                    AlignedFixedWindowRateLimiter.describe(current.window, nowMillis, limit - used - granted,
+                            permits, granted, limit, windowSizeMs, decision);
+                }
+                return granted;
+            }
+        }
+    }
+
+    // Never moves backwards: a thread that read the time just before rollover uses the newer window.
+    private Generation generation(long window) {
+        Generation current = generation.get();
+        while (current.window < window) {
+            Generation next = new Generation(window);
+            if (generation.compareAndSet(current, next)) {
+                droppedKeys.add(current.counts.size());
+                return next;
+            }
+            current = generation.get();
+        }
+        return current;
+    }
+}
+
+class SlidingWindowLogRateLimiter implements StatefulRateLimiter {
+    private final KeyStateStore<TimestampRing> userLogs;
+    private final Function<String, TimestampRing> newLog;
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    public SlidingWindowLogRateLimiter(int limit, long windowSizeMs, Clock clock) {
+        this(limit, windowSizeMs, TickSource.of(clock));
+    }
+
+    public SlidingWindowLogRateLimiter(int limit, long windowSizeMs, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(limit, windowSizeMs, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public SlidingWindowLogRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        this(limit, windowSizeMs, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public SlidingWindowLogRateLimiter(int limit, long windowSizeMs, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.userLogs = new KeyStateStore<>(keyStatePolicy, ticks, 40 + 8L * limit); // ring and its timestamp array
+        this.newLog = k -> new TimestampRing(limit);
+    }
+
+    /**
+     * Fixed-capacity log of admission times, oldest at {@code head}. A key never holds more than
+     * {@code limit} live timestamps, so its log is exactly {@code 8 * limit} bytes of array payload
+     * and admitting a request allocates nothing.
+     */
+    private static class TimestampRing {
+        final long[] timestamps;
+        int head;
+        int size;
+
+        TimestampRing(int capacity) {
+            this.timestamps = new long[capacity];
+        }
+
+        void expireBefore(long boundary) {
+            while (size > 0 && timestamps[head] < boundary) {
+                head = head + 1 == timestamps.length ? 0 : head + 1;
+                size--;
+            }
+        }
+
+        void add(long timestamp) {
+            int tail = head + size;
+            timestamps[tail < timestamps.length ? tail : tail - timestamps.length] = timestamp;
+            size++;
+        }
+
+        /** The i-th oldest live timestamp. */
+        long get(int i) {
+            int index = head + i;
+            return timestamps[index < timestamps.length ? index : index - timestamps.length];
+        }
+
+        int copyTo(long[] target) {
+            int firstRun = Math.min(size, timestamps.length - head);
+            System.arraycopy(timestamps, head, target, 0, firstRun);
+            System.arraycopy(timestamps, 0, target, firstRun, size - firstRun);
+            return size;
+        }
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userLogs;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[limit];
+        userLogs.forEach((apiKey, timestamps) -> {
+            int length;
+            synchronized (timestamps) {
+                length = timestamps.copyTo(words);
+            }
+            sink.accept(apiKey, words, length);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        if (length > limit) {
+            throw new IllegalArgumentException("log of " + length + " timestamps exceeds limit " + limit);
+        }
+        TimestampRing timestamps = userLogs.computeIfAbsent(apiKey, newLog, ticks.millis());
+
+        synchronized (timestamps) {
+            timestamps.head = 0;
+            timestamps.size = 0;
+            for (int i = 0; i < length; i++) {
+                timestamps.add(words[i]);
+            }
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long currentTimeMillis = ticks.millis();
+        TimestampRing timestamps = userLogs.computeIfAbsent(apiKey, newLog, currentTimeMillis);
+
+        synchronized (timestamps) {
+            // 1. Clean up: Advance past expired timestamps
+            timestamps.expireBefore(currentTimeMillis - windowSizeMs);
+
+            // 2. Log one timestamp per granted permit
+            int granted = RateLimiter.grantable(limit - timestamps.size, permits, partial);
+            for (int i = 0; i < granted; i++) {
+                timestamps.add(currentTimeMillis);
+            }
+            if (decision != null) {
+                describe(timestamps, currentTimeMillis, permits, granted, decision);
+            }
+            return granted;
+        }
+    }
+
+    // Caller holds the log's monitor. A timestamp t stops counting once now > t + windowSizeMs.
+    private void describe(TimestampRing timestamps, long currentTimeMillis, int permits, int granted, RateLimitDecision decision) {
+        int size = timestamps.size;
+        long resetNanos = size == 0 ? 0
+                : TimeUnit.MILLISECONDS.toNanos(timestamps.get(size - 1) + windowSizeMs + 1 - currentTimeMillis);
+        long retryAfterNanos;
+        if (granted > 0) {
+            retryAfterNanos = 0;
+        } else if (permits > limit) {
+            retryAfterNanos = RateLimiter.NEVER;
+        } else {
+            long mustExpire = timestamps.get(size + permits - limit - 1);
+            retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(mustExpire + windowSizeMs + 1 - currentTimeMillis);
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED, limit - size, resetNanos, retryAfterNanos);
+    }
+}
+
+class SlidingWindowCounterRateLimiter implements StatefulRateLimiter {
+    private final KeyStateStore<WindowPair> userWindows;
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    public SlidingWindowCounterRateLimiter(int limit, long windowSizeMs, Clock clock) {
+        this(limit, windowSizeMs, TickSource.of(clock));
+    }
+
+    public SlidingWindowCounterRateLimiter(int limit, long windowSizeMs, Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(limit, windowSizeMs, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public SlidingWindowCounterRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        this(limit, windowSizeMs, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public SlidingWindowCounterRateLimiter(int limit, long windowSizeMs, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.userWindows = new KeyStateStore<>(keyStatePolicy, ticks, 32); // WindowPair
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userWindows;
+    }
+
+    @Override
+    public void exportState(LimiterStateSink sink) {
+        long[] words = new long[3];
+        userWindows.forEach((apiKey, pair) -> {
+            synchronized (pair) {
+                words[0] = pair.currentWindowStartTime;
+                words[1] = pair.currentWindowCount;
+                words[2] = pair.prevWindowCount;
+            }
+            sink.accept(apiKey, words, 3);
+        });
+    }
+
+    @Override
+    public void importState(String apiKey, long[] words, int length) {
+        StatefulRateLimiter.requireWords(length, 3);
+        long currentTimeMillis = ticks.millis();
+        WindowPair pair = userWindows.computeIfAbsent(apiKey,
+                k -> new WindowPair(currentTimeMillis), currentTimeMillis);
+
+        // A window from the future, e.g. another node's clock running ahead, would never roll over
+        synchronized (pair) {
+            pair.currentWindowStartTime = Math.min(words[0], currentTimeMillis);
+            pair.currentWindowCount = (int) Math.max(0, Math.min(words[1], limit));
+            pair.prevWindowCount = (int) Math.max(0, Math.min(words[2], limit));
+        }
+    }
+
+    private static class WindowPair {
+        long currentWindowStartTime;
+        int currentWindowCount;
+        int prevWindowCount;
+
+        WindowPair(long startTime) {
+            this.currentWindowStartTime = startTime;
+            this.currentWindowCount = 0;
+            this.prevWindowCount = 0;
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false, null) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true, null);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        acquire(apiKey, permits, false, decision);
+        return decision;
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial, RateLimitDecision decision) {
+        RateLimiter.requirePositive(permits);
+        long currentTimeMillis = ticks.millis();
+        long currentWindowStartBoundary = (currentTimeMillis / windowSizeMs) * windowSizeMs;
+
+        WindowPair pair = userWindows.computeIfAbsent(apiKey,
+                k -> new WindowPair(currentWindowStartBoundary), currentTimeMillis);
+
+        synchronized (pair) {
+            // 1. Window Transition Logic
+            if (currentWindowStartBoundary > pair.currentWindowStartTime) {
+                pair.prevWindowCount = pair.currentWindowCount;
+                pair.currentWindowCount = 0;
+                pair.currentWindowStartTime = currentWindowStartBoundary;
+            }
+
+            // 2. Calculate Weighted Count
+            double currentWindowFraction = (currentTimeMillis - pair.currentWindowStartTime) / (double) windowSizeMs;
+            long weightedCount = (long) (pair.prevWindowCount * (1.0 - currentWindowFraction) + pair.currentWindowCount);
+
+            // 3. Check and Increment
+            int granted = RateLimiter.grantable(limit - weightedCount, permits, partial);
+            pair.currentWindowCount += granted;
+            if (decision != null) {
+                describe(pair, currentTimeMillis - pair.currentWindowStartTime, weightedCount + granted, permits, granted, decision);
+            }
+            return granted;
+        }
+    }
+
+    // Caller holds the pair's monitor. Both counts have aged out one full window after the current one ends.
+    private void describe(WindowPair pair, long elapsedMs, long weightedCount, int permits, int granted, RateLimitDecision decision) {
+        long resetNanos = TimeUnit.MILLISECONDS.toNanos(2 * windowSizeMs - elapsedMs);
+        long retryAfterNanos;
+        if (granted > 0) {
+            retryAfterNanos = 0;
+        } else if (permits > limit) {
+            retryAfterNanos = RateLimiter.NEVER;
+        } else {
+            long inCurrentWindow = millisUntilFits(pair.prevWindowCount, limit - permits - pair.currentWindowCount);
+            if (inCurrentWindow < windowSizeMs) {
+                retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, inCurrentWindow - elapsedMs));
+            } else {
+                long inNextWindow = millisUntilFits(pair.currentWindowCount, limit - permits);
+                retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(windowSizeMs - elapsedMs + inNextWindow);
+            }
+        }
+        decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED,
+                Math.max(0, limit - weightedCount), resetNanos, retryAfterNanos);
+    }
+
+    /**
+     * Earliest offset into a window at which a previous-window count of {@code previous}, weighted
+     * by the remaining fraction of the window, drops to at most {@code slack}; windowSizeMs if never.
+     */
+    private long millisUntilFits(long previous, long slack) {
+        if (slack < 0) return windowSizeMs;
+        if (previous <= slack) return 0;
+        return Math.min(windowSizeMs, windowSizeMs * (previous - slack - 1) / previous + 1);
+    }
+}
+
+/**
+ * Approximate sliding window for unbounded key spaces (per IP, per user agent): memory is
+ * fixed by the sketch dimensions and the side table size, however many keys are seen.
+ *
+ * The window is split into sub-windows, each with its own count-min sketch of
+ * d = ceil(ln(1 / delta)) rows by w = ceil(e / epsilon) counters, rounded up to a power of
+ * two. A key's count is the sum of its row minimum over the current and the last
+ * {@code subWindows} sub-windows, so the span looked at is between W and W + W / subWindows.
+ * The estimate never under-counts, and with probability at least 1 - delta per sub-window it
+ * over-counts by at most epsilon times the requests that sub-window's sketch recorded. Errors
+ * therefore only throttle early; the check and the add are separate, so racing callers can
+ * overshoot by at most one request each. Size epsilon well below limit / (requests per
+ * sub-window), or light keys start being throttled by their neighbours' traffic.
+ *
+ * A key whose estimate reaches half the limit moves to a side table of at most
+ * {@code heavyHitters} per-sub-window counters. They are seeded from the sketch estimates, so
+ * they keep the key's collision error from before promotion until those sub-windows age out;
+ * everything counted after promotion is exact, so the heaviest keys soon neither suffer nor
+ * cause collision error. When the table is full a newcomer replaces the lightest of a small
+ * sample if it is heavier; the loser's counts since promotion go back into the sketch, which
+ * still holds the ones it was seeded with.
+ *
+ * A sub-window's sketch is replaced with a fresh one when its slot is reused, rather than
+ * cleared in place, so a reader still on the old sub-window never sees it half cleared.
+ */
+class SketchSlidingWindowRateLimiter implements RateLimiter {
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final int limit;
+    private final long subWindowMs;
+    private final int slots; // sub-windows looked at, including the current one
+    private final int depth;
+    private final int width;
+    private final int slotStride;
+    private final AtomicReferenceArray<SubWindow> subWindows; // null until a slot is first used
+    private final Object rotationLock = new Object();
+    private final int maxHeavyHitters;
+    private final long promotionThreshold;
+    private final Map<String, HeavyHitter> heavyHitters = new ConcurrentHashMap<>();
+    private final ReentrantLock promotionLock = new ReentrantLock();
+    private Iterator<HeavyHitter> cursor; // guarded by promotionLock
+    private final TickSource ticks;
+
+    public SketchSlidingWindowRateLimiter(int limit, long windowSizeMs, Clock clock) {
+        this(limit, windowSizeMs, TickSource.of(clock));
+    }
+
+    public SketchSlidingWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks) {
+        this(limit, windowSizeMs, ticks, 8, 0.001, 0.01, 1024);
+    }
+
+    public SketchSlidingWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks,
+                                          int subWindows, double epsilon, double delta, int heavyHitters) {
+        if (limit <= 0 || windowSizeMs <= 0 || subWindows <= 0 || heavyHitters < 0) {
+            throw new IllegalArgumentException("limit, windowSizeMs and subWindows must be positive");
+        }
+        if (!(epsilon > 0 && epsilon < 1 && delta > 0 && delta < 1)) {
+            throw new IllegalArgumentException("epsilon and delta must be in (0, 1)");
+        }
+        this.limit = limit;
+        this.subWindowMs = Math.max(1, windowSizeMs / subWindows);
+        this.slots = subWindows + 1;
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        int minWidth = (int) Math.min(1 << 24, Math.ceil(Math.E / epsilon));
+        this.width = Integer.highestOneBit(minWidth) == minWidth ? minWidth : Integer.highestOneBit(minWidth) << 1;
+        this.slotStride = depth * width;
+        this.subWindows = new AtomicReferenceArray<>(slots);
+        this.maxHeavyHitters = heavyHitters;
+        this.promotionThreshold = Math.max(1, limit / 2);
+        this.ticks = ticks;
+    }
+
+    /** Fixed memory held by the sketches, in bytes; the side table adds about 100 bytes per entry. */
+    public long sketchBytes() {
+        return (long) slots * (slotStride * Integer.BYTES + 48);
+    }
+
+    // One sub-window's sketch, [row][column].
+    private static final class SubWindow {
+        final long window;
+        final AtomicIntegerArray counters;
+
+        SubWindow(long window, int size) {
+            this.window = window;
+            this.counters = new AtomicIntegerArray(size);
+        }
+    }
+
+    public int heavyHitterCount() {
+        return heavyHitters.size();
+    }
+
+    /** The count the limiter would compare against the limit for {@code apiKey} right now. */
+    public long estimate(String apiKey) {
+        long window = Math.floorDiv(ticks.millis(), subWindowMs);
+        HeavyHitter heavy = heavyHitters.get(apiKey);
+        if (heavy != null) {
+            synchronized (heavy) {
+                if (!heavy.evicted) return heavy.total(window);
+            }
+        }
+        long hash = OffHeapStateTable.hash(apiKey);
+        return estimate((int) hash, (int) (hash >>> 32) | 1, window);
+    }
+
+    // Exact counts for one key, kept in the same slot layout as the sketch.
+    private final class HeavyHitter {
+        final String key;
+        final long[] counts = new long[slots];
+        final long[] seeds = new long[slots]; // part of each count still held by the sketch
+        long newestWindow;
+        boolean evicted;
+
+        HeavyHitter(String key, long window) {
+            this.key = key;
+            this.newestWindow = window;
+        }
+
+        // Caller holds the monitor.
+        long total(long window) {
+            roll(window);
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+
+        private void roll(long window) {
+            long stale = Math.min(window - newestWindow, slots);
+            for (long age = 0; age < stale; age++) {
+                int slot = (int) Math.floorMod(window - age, (long) slots);
+                counts[slot] = 0;
+                seeds[slot] = 0;
+            }
+            newestWindow = Math.max(newestWindow, window);
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long window = Math.floorDiv(ticks.millis(), subWindowMs);
+        long hash = OffHeapStateTable.hash(apiKey);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        while (true) {
+            HeavyHitter heavy = heavyHitters.get(apiKey);
+            if (heavy == null) {
+                long estimate = estimate(h1, h2, window);
+                if (estimate < promotionThreshold || maxHeavyHitters == 0) {
+                    return acquireSketched(h1, h2, window, estimate, permits, partial);
+                }
+                heavy = promote(apiKey, h1, h2, window, estimate);
+                if (heavy == null) {
+                    return acquireSketched(h1, h2, window, estimate, permits, partial);
+                }
+            }
+            synchronized (heavy) {
+                if (heavy.evicted) continue;
+                int granted = RateLimiter.grantable(limit - heavy.total(window), permits, partial);
+                heavy.counts[(int) Math.floorMod(window, (long) slots)] += granted;
+                return granted;
+            }
+        }
+    }
+
+    private int acquireSketched(int h1, int h2, long window, long estimate, int permits, boolean partial) {
+        int granted = RateLimiter.grantable(limit - estimate, permits, partial);
+        if (granted > 0) {
+            add(currentSubWindow(window), h1, h2, granted);
+        }
+        return granted;
+    }
+
+    private long estimate(int h1, int h2, long window) {
+        long total = 0;
+        for (int age = 0; age < slots; age++) {
+            total += subWindowEstimate(h1, h2, window - age);
+        }
+        return total;
+    }
+
+    private long subWindowEstimate(int h1, int h2, long window) {
+        SubWindow sub = subWindows.get((int) Math.floorMod(window, (long) slots));
+        if (sub == null || sub.window != window) return 0;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, sub.counters.get(row * width + ((h1 + row * h2) & (width - 1))));
+        }
+        return min;
+    }
+
+    private void add(SubWindow sub, int h1, int h2, long amount) {
+        for (int row = 0; row < depth; row++) {
+            sub.counters.getAndAdd(row * width + ((h1 + row * h2) & (width - 1)), (int) amount);
+        }
+    }
+
+    // The current sub-window's sketch, replacing the one in its slot if that has expired.
+    private SubWindow currentSubWindow(long window) {
+        int slot = (int) Math.floorMod(window, (long) slots);
+        SubWindow sub = subWindows.get(slot);
+        if (sub == null || sub.window < window) {
+            synchronized (rotationLock) {
+                sub = subWindows.get(slot);
+                if (sub == null || sub.window < window) {
+                    sub = new SubWindow(window, slotStride);
+                    subWindows.set(slot, sub);
+                }
+            }
+        }
+        return sub;
+    }
+
+    /** Moves {@code apiKey} into the side table, or returns null if it is too light to displace anyone. */
+    private HeavyHitter promote(String apiKey, int h1, int h2, long window, long estimate) {
+        if (!promotionLock.tryLock()) return null;
+        try {
+            HeavyHitter existing = heavyHitters.get(apiKey);
+            if (existing != null) return existing;
+            if (heavyHitters.size() >= maxHeavyHitters && !evictLighterThan(estimate, window)) {
+                return null;
+            }
+            HeavyHitter heavy = new HeavyHitter(apiKey, window);
+            for (int age = 0; age < slots; age++) {
+                int slot = (int) Math.floorMod(window - age, (long) slots);
+                heavy.counts[slot] = heavy.seeds[slot] = subWindowEstimate(h1, h2, window - age);
+            }
+            heavyHitters.put(apiKey, heavy);
+            return heavy;
+        } finally {
+            promotionLock.unlock();
+        }
+    }
+
+    // Caller holds promotionLock.
+    private boolean evictLighterThan(long estimate, long window) {
+        HeavyHitter lightest = null;
+        long lightestTotal = estimate;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+            if (cursor == null || !cursor.hasNext()) {
+                cursor = heavyHitters.values().iterator();
+                if (!cursor.hasNext()) break;
+            }
+            HeavyHitter candidate = cursor.next();
+            long total;
+            synchronized (candidate) {
+                total = candidate.total(window);
+            }
+            if (total < lightestTotal) {
+                lightest = candidate;
+                lightestTotal = total;
+            }
+        }
+        if (lightest == null) return false;
+        demote(lightest, window);
+        return true;
+    }
+
+    private void demote(HeavyHitter heavy, long window) {
+        long hash = OffHeapStateTable.hash(heavy.key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        synchronized (heavy) {
+            heavy.roll(window);
+            heavy.evicted = true;
+            heavyHitters.remove(heavy.key, heavy);
+            for (int age = 0; age < slots; age++) {
+                int slot = (int) Math.floorMod(window - age, (long) slots);
+                long count = heavy.counts[slot] - heavy.seeds[slot];
+                SubWindow sub = subWindows.get(slot);
+                if (count > 0 && sub != null && sub.window == window - age) {
+                    add(sub, h1, h2, count);
+                }
+            }
+        }
+    }
+}
+
+class OffHeapTokenBucketRateLimiter implements RateLimiter {
+    private final OffHeapStateTable userBuckets;
+    private final int capacity;
+    private final long refillRate; // Tokens refilled per second
+    private final TickSource ticks;
+
+    public OffHeapTokenBucketRateLimiter(int capacity, long refillRate, Clock clock, OffHeapStateTable table) {
+        this(capacity, refillRate, TickSource.of(clock), table);
+    }
+
+    public OffHeapTokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks, OffHeapStateTable table) {
+        if (capacity <= 0 || capacity > LockFreeTokenBucketRateLimiter.MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be in [1, " + LockFreeTokenBucketRateLimiter.MAX_CAPACITY + "]");
+        }
+        if (refillRate < 0 || refillRate > LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE) {
+            throw new IllegalArgumentException("refillRate must be in [0, " + LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE + "]");
+        }
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+        this.ticks = ticks;
+        this.userBuckets = table;
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userBuckets;
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, refillRate);
+        long slot = userBuckets.slotFor(apiKey, LockFreeTokenBucketRateLimiter.pack(capacity, period));
+
+        while (true) {
+            long current = userBuckets.load(slot);
+            long refilled = LockFreeTokenBucketRateLimiter.refill(current, period, capacity, refillRate);
+            int granted = RateLimiter.grantable(LockFreeTokenBucketRateLimiter.tokens(refilled), permits, partial);
+            if (granted == 0) {
+                return 0;
+            }
+            if (userBuckets.compareAndSet(slot, current, refilled - granted)) {
+                return granted;
+            }
+        }
+    }
+}
+
+class OffHeapFixedWindowRateLimiter implements RateLimiter {
+    // Per-key state: [window index : 40 bits][request count : 24 bits]. Windows align to the epoch.
+    static final int COUNT_BITS = 24;
+    static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final OffHeapStateTable userWindows;
+    private final int limit;
+    private final long windowSizeMs;
+    private final TickSource ticks;
+
+    public OffHeapFixedWindowRateLimiter(int limit, long windowSizeMs, Clock clock, OffHeapStateTable table) {
+        this(limit, windowSizeMs, TickSource.of(clock), table);
+    }
+
+    public OffHeapFixedWindowRateLimiter(int limit, long windowSizeMs, TickSource ticks, OffHeapStateTable table) {
+        if (limit <= 0 || limit > COUNT_MASK) {
+            throw new IllegalArgumentException("limit must be in [1, " + COUNT_MASK + "]");
+        }
+        if (windowSizeMs <= 0) {
+            throw new IllegalArgumentException("windowSizeMs must be positive");
+        }
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.ticks = ticks;
+        this.userWindows = table;
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userWindows;
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long windowIndex = ticks.millis() / windowSizeMs;
+        long slot = userWindows.slotFor(apiKey, windowIndex << COUNT_BITS);
+
+        while (true) {
+            long current = userWindows.load(slot);
+            long state = roll(current, windowIndex);
+            int granted = RateLimiter.grantable(limit - (state & COUNT_MASK), permits, partial);
+            if (granted == 0) {
+                return 0;
+            }
+            if (userWindows.compareAndSet(slot, current, state + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    // Starts a new count when the window index has moved on; a racing caller with an older
+    // clock reading keeps counting into the newer window.
+    static long roll(long state, long windowIndex) {
+        long elapsed = ((windowIndex - (state >>> COUNT_BITS)) << COUNT_BITS) >> COUNT_BITS;
+        return elapsed > 0 ? windowIndex << COUNT_BITS : state;
+    }
+}
+
+class OffHeapSlidingWindowCounterRateLimiter implements RateLimiter {
+    // Per-key state: [previous count : 20 bits][current count : 20 bits][window index : 24 bits]
+    static final int INDEX_BITS = 24;
+    static final int COUNT_BITS = 20;
+    static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final OffHeapStateTable userWindows;
+    private final int limit;
+    private final long windowSizeMs;
+    private final long skewWindows;
+    private final TickSource ticks;
+
+    public OffHeapSlidingWindowCounterRateLimiter(int limit, long windowSizeMs, Clock clock, OffHeapStateTable table) {
+        this(limit, windowSizeMs, TickSource.of(clock), table);
+    }
+
+    public OffHeapSlidingWindowCounterRateLimiter(int limit, long windowSizeMs, TickSource ticks, OffHeapStateTable table) {
+        if (limit <= 0 || limit > COUNT_MASK) {
+            throw new IllegalArgumentException("limit must be in [1, " + COUNT_MASK + "]");
+        }
+        if (windowSizeMs <= 0) {
+            throw new IllegalArgumentException("windowSizeMs must be positive");
+        }
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.skewWindows = Math.max(1, 1000 / windowSizeMs);
+        this.ticks = ticks;
+        this.userWindows = table;
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return userWindows;
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long currentTimeMillis = ticks.millis();
+        long windowIndex = currentTimeMillis / windowSizeMs;
+        long elapsedInWindow = currentTimeMillis - windowIndex * windowSizeMs;
+        long slot = userWindows.slotFor(apiKey, windowIndex & INDEX_MASK);
+
+        while (true) {
+            long current = userWindows.load(slot);
+            long state = roll(current, windowIndex, skewWindows);
+            long currentCount = (state >>> INDEX_BITS) & COUNT_MASK;
+            long prevCount = state >>> (INDEX_BITS + COUNT_BITS);
+
+            long weightedCount = prevCount * (windowSizeMs - elapsedInWindow) / windowSizeMs + currentCount;
+            int granted = RateLimiter.grantable(limit - weightedCount, permits, partial);
+            if (granted == 0) {
+                return 0;
+            }
+            if (userWindows.compareAndSet(slot, current, state + ((long) granted << INDEX_BITS))) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * The window index is stored modulo 2^24. An index up to a second (at least one window)
+     * ahead was written by a racing caller and is kept; one further ahead has wrapped after a
+     * long idle spell and both counts are stale.
+     */
+    static long roll(long state, long windowIndex, long skewWindows) {
+        long elapsed = ((windowIndex - state) << (64 - INDEX_BITS)) >> (64 - INDEX_BITS);
+        if (elapsed <= 0 && elapsed >= -skewWindows) {
+            return state;
+        }
+        long carried = elapsed == 1 ? (state >>> INDEX_BITS) & COUNT_MASK : 0;
+        return (carried << (INDEX_BITS + COUNT_BITS)) | (windowIndex & INDEX_MASK);
+    }
+}
+
+/**
+ * Token bucket split into per-core stripes, in the style of LongAdder, for keys so hot (such
+ * as a single global limit) that one CAS word becomes the bottleneck. Each stripe owns a share
+ * of the capacity and refill rate and sits on its own cache line. A thread takes from its home
+ * stripe and borrows from the others when it runs dry, so a request is denied only after every
+ * stripe was seen empty.
+ *
+ * Admission never exceeds what one bucket with the same capacity and rate allows. Refill that
+ * lands on an already-full stripe is dropped, which under-admits only while other stripes are
+ * partly drained; borrowing keeps the stripes draining together.
+ */
+class StripedTokenBucketRateLimiter implements RateLimiter {
+    private static final int PAD = 8; // longs per 64-byte cache line
+
+    private final KeyStateStore<AtomicLongArray> userStripes;
+    private final int stripes;
+    private final int[] stripeCapacity;
+    private final long[] stripeRefillRate;
+    private final TickSource ticks;
+    private final Function<String, AtomicLongArray> newStripes;
+
+    public StripedTokenBucketRateLimiter(int capacity, long refillRate, Clock clock) {
+        this(capacity, refillRate, TickSource.of(clock));
+    }
+
+    public StripedTokenBucketRateLimiter(int capacity, long refillRate, Clock clock, int stripes) {
+        this(capacity, refillRate, TickSource.of(clock), stripes);
+    }
+
+    public StripedTokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks) {
+        this(capacity, refillRate, ticks, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedTokenBucketRateLimiter(int capacity, long refillRate, TickSource ticks, int stripes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (refillRate < 0 || refillRate > LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE) {
+            throw new IllegalArgumentException("refillRate must be in [0, " + LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE + "]");
+        }
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int powerOfTwo = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = Math.min(powerOfTwo, Integer.highestOneBit(capacity)); // every stripe holds at least one token
+        this.stripeCapacity = new int[this.stripes];
+        this.stripeRefillRate = new long[this.stripes];
+        for (int i = 0; i < this.stripes; i++) {
+            stripeCapacity[i] = capacity / this.stripes + (i < capacity % this.stripes ? 1 : 0);
+            stripeRefillRate[i] = refillRate / this.stripes + (i < refillRate % this.stripes ? 1 : 0);
+            if (stripeCapacity[i] > LockFreeTokenBucketRateLimiter.MAX_CAPACITY) {
+                throw new IllegalArgumentException("capacity per stripe must not exceed " + LockFreeTokenBucketRateLimiter.MAX_CAPACITY);
+            }
+        }
+        this.ticks = ticks;
+        this.userStripes = new KeyStateStore<>(KeyStatePolicy.UNBOUNDED, ticks, 32 + 64L * this.stripes); // padded AtomicLongArray
+        this.newStripes = k -> newStripes(ticks.nanos());
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        AtomicLongArray state = userStripes.computeIfAbsent(apiKey, newStripes, TickSource.toMillis(nowNanos));
+
+        int home = homeStripe();
+        int granted = 0;
+        for (int i = 0; i < stripes && granted < permits; i++) {
+            granted += take(state, (home + i) & (stripes - 1), nowNanos, permits - granted);
+        }
+        if (granted < permits && !partial) {
+            // Only the total matters for the bound, so the tokens go back wherever they fit.
+            for (int i = 0; i < stripes && granted > 0; i++) {
+                granted -= refund(state, (home + i) & (stripes - 1), granted);
+            }
+            return 0;
+        }
+        return granted;
+    }
+
+    private AtomicLongArray newStripes(long nowNanos) {
+        AtomicLongArray state = new AtomicLongArray(stripes * PAD);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, stripeRefillRate[stripe]);
+            state.set(stripe * PAD, LockFreeTokenBucketRateLimiter.pack(stripeCapacity[stripe], period));
+        }
+        return state;
+    }
+
+    private int take(AtomicLongArray state, int stripe, long nowNanos, int max) {
+        long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, stripeRefillRate[stripe]);
+        int index = stripe * PAD;
+        while (true) {
+            long current = state.get(index);
+            long refilled = LockFreeTokenBucketRateLimiter.refill(current, period, stripeCapacity[stripe],
+                    stripeRefillRate[stripe]);
+            int got = (int) Math.min(max, LockFreeTokenBucketRateLimiter.tokens(refilled));
+            if (got == 0 || state.compareAndSet(index, current, refilled - got)) {
+                return got;
+            }
+        }
+    }
+
+    // Returns the permits that fit under the stripe's capacity.
+    private int refund(AtomicLongArray state, int stripe, int permits) {
+        int index = stripe * PAD;
+        while (true) {
+            long current = state.get(index);
+            long tokens = LockFreeTokenBucketRateLimiter.tokens(current);
+            int restored = (int) Math.min(permits, stripeCapacity[stripe] - tokens);
+            if (restored <= 0) return 0;
+            if (state.compareAndSet(index, current, (current & ~LockFreeTokenBucketRateLimiter.TOKEN_MASK) | (tokens + restored))) {
+                return restored;
+            }
+        }
+    }
+
+    // Spreads thread ids so threads created together land on different stripes.
+    private int homeStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9e3779b97f4a7c15L) >>> 32) & (stripes - 1);
+    }
+}
+
+class TierLimit {
+    final int capacity;
+    final long refillRate; // Tokens refilled per second
+
+    public TierLimit(int capacity, long refillRate) {
+        if (capacity <= 0 || capacity > LockFreeTokenBucketRateLimiter.MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be in [1, " + LockFreeTokenBucketRateLimiter.MAX_CAPACITY + "]");
+        }
+        if (refillRate < 0 || refillRate > LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE) {
+            throw new IllegalArgumentException("refillRate must be in [0, " + LockFreeTokenBucketRateLimiter.MAX_REFILL_RATE + "]");
+        }
+        this.capacity = capacity;
+        this.refillRate = refillRate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TierLimit && ((TierLimit) o).capacity == capacity && ((TierLimit) o).refillRate == refillRate;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * capacity + Long.hashCode(refillRate);
+    }
+}
+
+/**
+ * Enforces per-key, per-key-and-endpoint, per-endpoint and global token buckets in one pass.
+ * Any tier may be null to disable it.
+ *
+ * Every tier is checked before any is written, so a denied request leaves all tiers untouched.
+ * Permits are then taken tier by tier with CAS; if a concurrent request drains a later tier in
+ * between, the tiers already taken are refunded.
+ */
+class CompositeRateLimiter implements RequestRateLimiter {
+    private static final char KEY_ENDPOINT_SEPARATOR = '\u0000';
+
+    private final TierLimit perKey;
+    private final TierLimit perKeyEndpoint;
+    private final TierLimit perEndpoint;
+    private final TierLimit global;
+    private final KeyStateStore<AtomicLong> keyBuckets;
+    private final KeyStateStore<AtomicLong> keyEndpointBuckets; // keyed by apiKey + KEY_ENDPOINT_SEPARATOR + apiUrl
+    private final KeyStateStore<AtomicLong> endpointBuckets;
+    private final AtomicLong globalBucket;
+    private final TickSource ticks;
+
+    public CompositeRateLimiter(TierLimit perKey, TierLimit perKeyEndpoint, TierLimit perEndpoint, TierLimit global, Clock clock) {
+        this(perKey, perKeyEndpoint, perEndpoint, global, TickSource.of(clock));
+    }
+
+    public CompositeRateLimiter(TierLimit perKey, TierLimit perKeyEndpoint, TierLimit perEndpoint, TierLimit global,
+                                Clock clock, KeyStatePolicy keyStatePolicy) {
+        this(perKey, perKeyEndpoint, perEndpoint, global, TickSource.of(clock), keyStatePolicy);
+    }
+
+    public CompositeRateLimiter(TierLimit perKey, TierLimit perKeyEndpoint, TierLimit perEndpoint, TierLimit global, TickSource ticks) {
+        this(perKey, perKeyEndpoint, perEndpoint, global, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public CompositeRateLimiter(TierLimit perKey, TierLimit perKeyEndpoint, TierLimit perEndpoint, TierLimit global,
+                                TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.perKey = perKey;
+        this.perKeyEndpoint = perKeyEndpoint;
+        this.perEndpoint = perEndpoint;
+        this.global = global;
+        this.ticks = ticks;
+        this.keyBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+        this.keyEndpointBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+        this.endpointBuckets = new KeyStateStore<>(keyStatePolicy, ticks, 24); // AtomicLong
+        this.globalBucket = global == null ? null : new AtomicLong(initialState(global, ticks.nanos()));
+    }
+
+    @Override
+    public RequestStatus tryAcquire(APIRequest request, int permits) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        long nowMillis = TickSource.toMillis(nowNanos);
+
+        AtomicLong keyBucket = perKey == null ? null : keyBuckets.computeIfAbsent(request.getApiKey(),
+                k -> new AtomicLong(initialState(perKey, nowNanos)), nowMillis);
+        AtomicLong keyEndpointBucket = perKeyEndpoint == null ? null : keyEndpointBuckets.computeIfAbsent(
+                request.getApiKey() + KEY_ENDPOINT_SEPARATOR + request.getApiUrl(),
+                k -> new AtomicLong(initialState(perKeyEndpoint, nowNanos)), nowMillis);
+        AtomicLong endpointBucket = perEndpoint == null ? null : endpointBuckets.computeIfAbsent(request.getApiUrl(),
+                k -> new AtomicLong(initialState(perEndpoint, nowNanos)), nowMillis);
+
+        // 1. Check every tier without writing, most specific first
+        if (!available(keyEndpointBucket, perKeyEndpoint, nowNanos, permits)
+                || !available(keyBucket, perKey, nowNanos, permits)
+                || !available(endpointBucket, perEndpoint, nowNanos, permits)
+                || !available(globalBucket, global, nowNanos, permits)) {
+            return RequestStatus.THROTTLED;
+        }
+
+        // 2. Take permits tier by tier, refunding the taken tiers if a concurrent request won a race
+        if (!take(keyEndpointBucket, perKeyEndpoint, nowNanos, permits)) {
+            return RequestStatus.THROTTLED;
+        }
+        if (!take(keyBucket, perKey, nowNanos, permits)) {
+            refund(keyEndpointBucket, perKeyEndpoint, permits);
+            return RequestStatus.THROTTLED;
+        }
+        if (!take(endpointBucket, perEndpoint, nowNanos, permits)) {
+            refund(keyBucket, perKey, permits);
+            refund(keyEndpointBucket, perKeyEndpoint, permits);
+            return RequestStatus.THROTTLED;
+        }
+        if (!take(globalBucket, global, nowNanos, permits)) {
+            refund(endpointBucket, perEndpoint, permits);
+            refund(keyBucket, perKey, permits);
+            refund(keyEndpointBucket, perKeyEndpoint, permits);
+            return RequestStatus.THROTTLED;
+        }
+        return RequestStatus.ALLOWED;
+    }
+
+    private static long initialState(TierLimit tier, long nowNanos) {
+        return LockFreeTokenBucketRateLimiter.pack(tier.capacity,
+                LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, tier.refillRate));
+    }
+
+    private static boolean available(AtomicLong bucket, TierLimit tier, long nowNanos, int permits) {
+        if (bucket == null) return true;
+        long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, tier.refillRate);
+        return LockFreeTokenBucketRateLimiter.tokens(
+                LockFreeTokenBucketRateLimiter.refill(bucket.get(), period, tier.capacity, tier.refillRate)) >= permits;
+    }
+
+    private static boolean take(AtomicLong bucket, TierLimit tier, long nowNanos, int permits) {
+        if (bucket == null) return true;
+        long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, tier.refillRate);
+        while (true) {
+            long current = bucket.get();
+            long refilled = LockFreeTokenBucketRateLimiter.refill(current, period, tier.capacity, tier.refillRate);
+            if (LockFreeTokenBucketRateLimiter.tokens(refilled) < permits) {
+                return false;
+            }
+            if (bucket.compareAndSet(current, refilled - permits)) {
+                return true;
+            }
+        }
+    }
+
+    private static void refund(AtomicLong bucket, TierLimit tier, int permits) {
+        if (bucket == null) return;
+        bucket.getAndUpdate(state -> {
+            long tokens = Math.min(tier.capacity, LockFreeTokenBucketRateLimiter.tokens(state) + permits);
+            return (state & ~LockFreeTokenBucketRateLimiter.TOKEN_MASK) | tokens;
+        });
+    }
+}
+
+/** A named quota. Rules naming the same policy share one bucket per API key. */
+class RatePolicy {
+    final String name;
+    final TierLimit limit;
+
+    public RatePolicy(String name, TierLimit limit) {
+        this.name = name;
+        this.limit = limit;
+    }
+}
+
+/**
+ * Applies {@code policy} to API keys matching {@code keyPattern} (an exact key, a prefix ending
+ * in '*', or "*" for every key) on URLs starting with {@code urlPrefix}. Prefixes match by
+ * character, so end one with '/' to match whole path segments.
+ */
+class PolicyRule {
+    final String keyPattern;
+    final String urlPrefix;
+    final RatePolicy policy;
+
+    public PolicyRule(String keyPattern, String urlPrefix, RatePolicy policy) {
+        if (keyPattern.isEmpty() || keyPattern.indexOf('*') != -1 && keyPattern.indexOf('*') != keyPattern.length() - 1) {
+            throw new IllegalArgumentException("keyPattern may only end in '*': " + keyPattern);
+        }
+        this.keyPattern = keyPattern;
+        this.urlPrefix = urlPrefix;
+        this.policy = policy;
+    }
+}
+
+/** Immutable character trie answering longest-prefix lookups without allocating. */
+class PrefixTrie<V> {
+    private static final char[] NO_LABELS = new char[0];
+    private static final PrefixTrie<?>[] NO_CHILDREN = new PrefixTrie<?>[0];
+
+    private char[] labels = NO_LABELS; // sorted
+    private PrefixTrie<V>[] children = noChildren();
+    private V value;
+
+    @SuppressWarnings("unchecked")
+    private static <V> PrefixTrie<V>[] noChildren() {
+        return (PrefixTrie<V>[]) NO_CHILDREN;
+    }
+
+    /** Build-time only; a trie must not be modified once it is shared. */
+    void put(String prefix, V value) {
+        PrefixTrie<V> node = this;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            int index = Arrays.binarySearch(node.labels, c);
+            if (index < 0) {
+                index = -index - 1;
+                node.labels = insert(node.labels, index, c);
+                node.children = insert(node.children, index, new PrefixTrie<>());
+            }
+            node = node.children[index];
+        }
+        node.value = value;
+    }
+
+    V get(String prefix) {
+        PrefixTrie<V> node = this;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        return node == null ? null : node.value;
+    }
+
+    /** The value of the longest inserted prefix of {@code s}, or null. */
+    V longestPrefixMatch(String s) {
+        PrefixTrie<V> node = this;
+        V match = value;
+        for (int i = 0; i < s.length(); i++) {
+            node = node.child(s.charAt(i));
+            if (node == null) break;
+            if (node.value != null) match = node.value;
+        }
+        return match;
+    }
+
+    private PrefixTrie<V> child(char c) {
+        int index = Arrays.binarySearch(labels, c);
+        return index < 0 ? null : children[index];
+    }
+
+    private static char[] insert(char[] array, int index, char c) {
+        char[] copy = new char[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, index);
+        copy[index] = c;
+        System.arraycopy(array, index, copy, index + 1, array.length - index);
+        return copy;
+    }
+
+    private static <T> T[] insert(T[] array, int index, T element) {
+        T[] copy = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, copy, index + 1, array.length - index);
+        copy[index] = element;
+        return copy;
+    }
+}
+
+/**
+ * The current set of {@link PolicyRule}s, compiled into tries and swapped atomically on
+ * {@link #reload}. A request's policy comes from the most specific key pattern with any rule
+ * matching its URL (exact key, then longer key prefixes, then "*"), and among that pattern's
+ * rules the longest URL prefix. Lookups allocate nothing and parse nothing.
+ *
+ * Text form, one rule per line: {@code keyPattern urlPrefix policyName capacity refillRate};
+ * blank lines and lines starting with '#' are ignored.
+ */
+class PolicyRegistry {
+    private volatile Snapshot snapshot;
+
+    /** Rules of one key pattern, falling back to the next less specific pattern. */
+    static final class KeyGroup {
+        final PrefixTrie<RatePolicy> routes = new PrefixTrie<>();
+        KeyGroup parent;
+
+        RatePolicy resolve(String url) {
+            for (KeyGroup group = this; group != null; group = group.parent) {
+                RatePolicy policy = group.routes.longestPrefixMatch(url);
+                if (policy != null) return policy;
+            }
+            return null;
+        }
+    }
+
+    static final class Snapshot {
+        final long generation;
+        final Map<String, KeyGroup> exactKeys = new HashMap<>();
+        final PrefixTrie<KeyGroup> keyPrefixes = new PrefixTrie<>();
+        final Map<String, RatePolicy> policies = new HashMap<>();
+
+        Snapshot(long generation, Collection<PolicyRule> rules) {
+            this.generation = generation;
+            Map<String, KeyGroup> prefixGroups = new HashMap<>();
+            for (PolicyRule rule : rules) {
+                RatePolicy known = policies.putIfAbsent(rule.policy.name, rule.policy);
+                if (known != null && known != rule.policy) {
+                    throw new IllegalArgumentException("policy " + rule.policy.name + " is defined twice");
+                }
+                boolean prefix = rule.keyPattern.endsWith("*");
+                String key = prefix ? rule.keyPattern.substring(0, rule.keyPattern.length() - 1) : rule.keyPattern;
+                KeyGroup group = (prefix ? prefixGroups : exactKeys).computeIfAbsent(key, k -> new KeyGroup());
+                group.routes.put(rule.urlPrefix, rule.policy);
+            }
+            prefixGroups.forEach(keyPrefixes::put);
+            prefixGroups.forEach((prefix, group) -> group.parent = prefix.isEmpty() ? null
+                    : keyPrefixes.longestPrefixMatch(prefix.substring(0, prefix.length() - 1)));
+            exactKeys.forEach((key, group) -> group.parent = keyPrefixes.longestPrefixMatch(key));
+        }
+
+        KeyGroup groupFor(String apiKey) {
+            KeyGroup group = exactKeys.get(apiKey);
+            return group != null ? group : keyPrefixes.longestPrefixMatch(apiKey);
+        }
+    }
+
+    public PolicyRegistry(Collection<PolicyRule> rules) {
+        this.snapshot = new Snapshot(0, rules);
+    }
+
+    /** Replaces every rule at once; requests see either the old rules or the new ones. */
+    public synchronized void reload(Collection<PolicyRule> rules) {
+        snapshot = new Snapshot(snapshot.generation + 1, rules);
+    }
+
+    public void reload(Path file) throws IOException {
+        reload(parse(Files.readAllLines(file)));
+    }
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public RatePolicy resolve(String apiKey, String url) {
+        KeyGroup group = snapshot.groupFor(apiKey);
+        return group == null ? null : group.resolve(url);
+    }
+
+    static List<PolicyRule> parse(List<String> lines) {
+        Map<String, RatePolicy> policies = new HashMap<>();
+        List<PolicyRule> rules = new ArrayList<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            String[] fields = trimmed.split("\\s+");
+            if (fields.length != 5) {
+                throw new IllegalArgumentException("expected 'keyPattern urlPrefix policyName capacity refillRate': " + line);
+            }
+            TierLimit limit = new TierLimit(Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+            RatePolicy policy = policies.computeIfAbsent(fields[2], name -> new RatePolicy(name, limit));
+            if (policy.limit.capacity != limit.capacity || policy.limit.refillRate != limit.refillRate) {
+                throw new IllegalArgumentException("policy " + fields[2] + " is defined twice with different limits");
+            }
+            rules.add(new PolicyRule(fields[0], fields[1], policy));
+        }
+        return rules;
+    }
+}
+
+/**
+ * Token buckets whose limits come from a {@link PolicyRegistry}, one bucket per API key and
+ * policy. A key caches its resolved key pattern until the registry is reloaded. When a reload
+ * changes a policy's capacity or refill rate, each bucket migrates lazily on its next use: it
+ * keeps its tokens, capped at the new capacity, and refills at the new rate from then on. A
+ * caller still on an older registry snapshot never migrates a bucket back. Buckets of policies
+ * that no longer exist are dropped when the key first resolves against the newer registry.
+ * Requests matching no rule are allowed.
+ */
+class PolicyRateLimiter implements RequestRateLimiter {
+    private final PolicyRegistry registry;
+    private final KeyStateStore<KeyState> keyStates;
+    private final Function<String, KeyState> newKeyState = k -> new KeyState();
+    private final TickSource ticks;
+
+    public PolicyRateLimiter(PolicyRegistry registry, TickSource ticks) {
+        this(registry, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public PolicyRateLimiter(PolicyRegistry registry, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        this.registry = registry;
+        this.ticks = ticks;
+        this.keyStates = new KeyStateStore<>(keyStatePolicy, ticks, 168); // KeyState, its map and one policy bucket
+    }
+
+    public KeyStateMetrics keyStateMetrics() {
+        return keyStates;
+    }
+
+    private static final class KeyState {
+        volatile Resolution resolution;
+        final Map<String, PolicyBucket> buckets = new ConcurrentHashMap<>(4);
+    }
+
+    // The key's pattern group as resolved in one registry snapshot.
+    private static final class Resolution {
+        final PolicyRegistry.Snapshot snapshot;
+        final PolicyRegistry.KeyGroup group;
+
+        Resolution(PolicyRegistry.Snapshot snapshot, PolicyRegistry.KeyGroup group) {
+            this.snapshot = snapshot;
+            this.group = group;
+        }
+    }
+
+    private static final class PolicyBucket {
+        final TierLimit limit;
+        final long generation; // registry generation the limit was taken from
+        final AtomicLong state;
+        PolicyBucket successor; // set when migrated, guarded by the bucket's monitor
+
+        PolicyBucket(TierLimit limit, long generation, long state) {
+            this.limit = limit;
+            this.generation = generation;
+            this.state = new AtomicLong(state);
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(APIRequest request, int permits) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        PolicyRegistry.Snapshot snapshot = registry.snapshot();
+        KeyState keyState = keyStates.computeIfAbsent(request.getApiKey(), newKeyState, TickSource.toMillis(nowNanos));
+        Resolution resolution = keyState.resolution;
+        if (resolution == null || resolution.snapshot != snapshot) {
+            if (resolution != null && resolution.snapshot.generation < snapshot.generation) {
+                keyState.buckets.keySet().retainAll(snapshot.policies.keySet());
+            }
+            resolution = new Resolution(snapshot, snapshot.groupFor(request.getApiKey()));
+            keyState.resolution = resolution;
+        }
+        RatePolicy policy = resolution.group == null ? null : resolution.group.resolve(request.getApiUrl());
+        if (policy == null) {
+            return RequestStatus.ALLOWED;
+        }
+
+        PolicyBucket bucket = keyState.buckets.get(policy.name);
+        if (bucket == null) {
+            bucket = keyState.buckets.computeIfAbsent(policy.name, name -> new PolicyBucket(policy.limit, snapshot.generation,
+                    LockFreeTokenBucketRateLimiter.pack(policy.limit.capacity,
+                            LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, policy.limit.refillRate))));
+        }
+        if (bucket.generation < snapshot.generation && !bucket.limit.equals(policy.limit)) {
+            bucket = migrate(keyState, bucket, policy, snapshot.generation, nowNanos);
+        }
+        TierLimit limit = bucket.limit;
+        long period = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, limit.refillRate);
+        while (true) {
+            long current = bucket.state.get();
+            long refilled = LockFreeTokenBucketRateLimiter.refill(current, period, limit.capacity, limit.refillRate);
+            if (LockFreeTokenBucketRateLimiter.tokens(refilled) < permits) {
+                return RequestStatus.THROTTLED;
+            }
+            if (bucket.state.compareAndSet(current, refilled - permits)) {
+                return RequestStatus.ALLOWED;
+            }
+        }
+    }
+
+    /**
+     * Settles the tokens earned under the old limit and moves them to a bucket stamped in the
+     * new rate's periods. The old bucket is left empty and stamped a second in the future, so
+     * a racing caller still holding it is throttled rather than refilled at the wrong rate.
+     */
+    private static PolicyBucket migrate(KeyState keyState, PolicyBucket bucket, RatePolicy policy, long generation,
+                                        long nowNanos) {
+        synchronized (bucket) {
+            if (bucket.successor != null) {
+                return bucket.successor;
+            }
+            TierLimit previous = bucket.limit;
+            long oldPeriod = LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, previous.refillRate);
+            long tokens = LockFreeTokenBucketRateLimiter.tokens(LockFreeTokenBucketRateLimiter.refill(
+                    bucket.state.getAndSet(LockFreeTokenBucketRateLimiter.pack(0, oldPeriod + previous.refillRate)),
+                    oldPeriod, previous.capacity, previous.refillRate));
+            PolicyBucket migrated = new PolicyBucket(policy.limit, generation, LockFreeTokenBucketRateLimiter.pack(
+                    Math.min(tokens, policy.limit.capacity),
+                    LockFreeTokenBucketRateLimiter.refillPeriod(nowNanos, policy.limit.refillRate)));
+            bucket.successor = migrated;
+            keyState.buckets.replace(policy.name, bucket, migrated);
+            return migrated;
+        }
+    }
+}
+
+/**
+ * State shared by limiter instances on many nodes, e.g. a Redis or memcached client. Each call
+ * may be a network round trip, so callers should batch through leases rather than call per
+ * request. Entries expire on their own once their time to live passes; an absent or expired
+ * entry reads as 0.
+ */
+interface SharedLimiterStore {
+    /** Adds {@code delta} to the counter at {@code key} and returns the new value. A new entry lives for {@code ttlMillis}. */
+    long incrementAndGet(String key, long delta, long ttlMillis);
+
+    long get(String key);
+
+    /** Sets {@code key} to {@code update} for {@code ttlMillis} if it currently holds {@code expect}. */
+    boolean compareAndSet(String key, long expect, long update, long ttlMillis);
+}
+
+/** In-process {@link SharedLimiterStore} for tests and single-node use, with optional simulated latency. */
+class LoopbackLimiterStore implements SharedLimiterStore {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final TickSource ticks;
+    private final long latencyNanos;
+    private final LongAdder operations = new LongAdder();
+
+    private static final class Entry {
+        final long value;
+        final long expiresAtMillis;
+
+        Entry(long value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    public LoopbackLimiterStore(TickSource ticks) {
+        this(ticks, Duration.ZERO);
+    }
+
+    public LoopbackLimiterStore(TickSource ticks, Duration latency) {
+        this.ticks = ticks;
+        this.latencyNanos = latency.toNanos();
+    }
+
+    /** Calls made so far, i.e. the round trips a networked store would have paid for. */
+    public long operations() {
+        return operations.sum();
+    }
+
+    @Override
+    public long incrementAndGet(String key, long delta, long ttlMillis) {
+        roundTrip();
+        long nowMillis = ticks.millis();
+        return entries.compute(key, (k, entry) -> live(entry, nowMillis)
+                ? new Entry(entry.value + delta, entry.expiresAtMillis)
+                : new Entry(delta, nowMillis + ttlMillis)).value;
+    }
+
+    @Override
+    public long get(String key) {
+        roundTrip();
+        Entry entry = entries.get(key);
+        return live(entry, ticks.millis()) ? entry.value : 0;
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expect, long update, long ttlMillis) {
+        roundTrip();
+        long nowMillis = ticks.millis();
+        boolean[] swapped = new boolean[1];
+        entries.compute(key, (k, entry) -> {
+            long current = live(entry, nowMillis) ? entry.value : 0;
+            if (current != expect) {
+                return live(entry, nowMillis) ? entry : null;
+            }
+            swapped[0] = true;
+            return new Entry(update, nowMillis + ttlMillis);
+        });
+        return swapped[0];
+    }
+
+    private static boolean live(Entry entry, long nowMillis) {
+        return entry != null && entry.expiresAtMillis > nowMillis;
+    }
+
+    private void roundTrip() {
+        operations.increment();
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        if (entries.size() > 1024 && ThreadLocalRandom.current().nextInt(1024) == 0) {
+            long nowMillis = ticks.millis();
+            entries.values().removeIf(entry -> entry.expiresAtMillis <= nowMillis);
+        }
+    }
+}
+
+/**
+ * Fixed-window limit shared by every node using the same store and namespace. Instead of one
+ * store increment per request, a node leases {@code leaseSize} permits of the current window
+ * at a time and spends them locally, so a round trip is paid once per lease. Once the store
+ * reports the window used up, the node throttles the key locally until the window ends.
+ *
+ * Permits leased but not spent by the end of a window are lost, so the cluster may admit up to
+ * leaseSize - 1 fewer requests per node and window than the limit; it never admits more.
+ * Same-key callers on one node wait for each other while a lease is being fetched.
+ */
+class DistributedRateLimiter implements RateLimiter {
+    private static final Function<String, Lease> NEW_LEASE = k -> new Lease();
+
+    private final SharedLimiterStore store;
+    private final String namespace;
+    private final int limit;
+    private final long windowSizeMs;
+    private final int leaseSize;
+    private final KeyStateStore<Lease> leases;
+    private final TickSource ticks;
+
+    public DistributedRateLimiter(SharedLimiterStore store, String namespace, int limit, long windowSizeMs,
+                                  int leaseSize, TickSource ticks) {
+        this(store, namespace, limit, windowSizeMs, leaseSize, ticks, KeyStatePolicy.UNBOUNDED);
+    }
+
+    public DistributedRateLimiter(SharedLimiterStore store, String namespace, int limit, long windowSizeMs,
+                                  int leaseSize, TickSource ticks, KeyStatePolicy keyStatePolicy) {
+        if (limit <= 0 || windowSizeMs <= 0) {
+            throw new IllegalArgumentException("limit and windowSizeMs must be positive");
+        }
+        if (leaseSize <= 0 || leaseSize > limit) {
+            throw new IllegalArgumentException("leaseSize must be in [1, limit]");
+        }
+        this.store = store;
+        this.namespace = namespace;
+        this.limit = limit;
+        this.windowSizeMs = windowSizeMs;
+        this.leaseSize = leaseSize;
+        this.ticks = ticks;
+        this.leases = new KeyStateStore<>(keyStatePolicy, ticks, 32); // Lease
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return leases;
+    }
+
+    // Permits this node holds for one key in one window.
+    private static class Lease {
+        long window = Long.MIN_VALUE;
+        long remaining;
+        boolean exhausted;
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        long nowMillis = ticks.millis();
+        long window = Math.floorDiv(nowMillis, windowSizeMs);
+        Lease lease = leases.computeIfAbsent(apiKey, NEW_LEASE, nowMillis);
+
+        synchronized (lease) {
+            if (lease.window != window) {
+                lease.window = window;
+                lease.remaining = 0;
+                lease.exhausted = false;
+            }
+            if (lease.remaining < permits && !lease.exhausted && (partial || permits <= limit)) {
+                long wanted = Math.min(limit, Math.max(leaseSize, permits - lease.remaining));
+                long total = store.incrementAndGet(namespace + ':' + apiKey + ':' + window, wanted, 2 * windowSizeMs);
+                long leased = Math.max(0, Math.min(wanted, limit - (total - wanted)));
+                lease.remaining += leased;
+                lease.exhausted = leased < wanted;
+            }
+            int granted = RateLimiter.grantable(lease.remaining, permits, partial);
+            lease.remaining -= granted;
+            return granted;
+        }
+    }
+}
+
+/**
+ * Checkpoint files for {@link StatefulRateLimiter} state. A checkpoint is written to a
+ * temporary file and atomically renamed over the previous one, so a crash mid-write leaves the
+ * last complete checkpoint in place. Restores map the file read-only and import it in one pass.
+ *
+ * Layout: magic, version, then per key [key length][key chars][word count][words].
+ *
+ * This is the legacy checkpoint format: {@link LimiterCheckpointer} now writes
+ * {@link LimiterSnapshot}s and reads this format only to restore checkpoints left by older builds.
+ */
+class LimiterStateFile {
+    private static final int MAGIC = 0x524c_5350; // "RLSP"
+    private static final int VERSION = 1;
+
+    private LimiterStateFile() {}
+
+    /** Returns whether {@code file} starts with this format's magic number. */
+    public static boolean matches(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public static void write(StatefulRateLimiter limiter, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            limiter.exportState((apiKey, words, length) -> {
+                try {
+                    out.writeInt(apiKey.length());
+                    out.writeChars(apiKey);
+                    out.writeInt(length);
+                    for (int i = 0; i < length; i++) {
+                        out.writeLong(words[i]);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Imports every key in {@code file} into {@code limiter} and returns the number of keys restored. */
+    public static int read(Path file, StatefulRateLimiter limiter) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(file + " is not a limiter checkpoint");
+        }
+
+        long[] words = new long[16];
+        int keys = 0;
+        while (in.hasRemaining()) {
+            char[] key = new char[readLength(in, Character.BYTES, file)];
+            in.asCharBuffer().get(key);
+            in.position(in.position() + key.length * Character.BYTES);
+
+            int length = readLength(in, Long.BYTES, file);
+            if (length > words.length) {
+                words = new long[Math.max(length, words.length * 2)];
+            }
+            in.asLongBuffer().get(words, 0, length);
+            in.position(in.position() + length * Long.BYTES);
+
+            try {
+                limiter.importState(new String(key), words, length);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " is corrupt: " + e.getMessage(), e);
+            }
+            keys++;
+        }
+        return keys;
+    }
+
+    // A count of elements of elementBytes each, checked against what is left of the file.
+    private static int readLength(MappedByteBuffer in, int elementBytes, Path file) throws IOException {
+        if (in.remaining() < Integer.BYTES) {
+            throw new IOException(file + " is truncated");
+        }
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining() / elementBytes) {
+            throw new IOException(file + " is corrupt: length " + length + " at offset " + (in.position() - Integer.BYTES));
+        }
+        return length;
+    }
+}
+
+/**
+ * Streams the state of several limiters into one compact snapshot for rebalancing between
+ * nodes or offline inspection. Export runs over each limiter's weakly consistent
+ * {@link StatefulRateLimiter#exportState}, so admission never stops. Every key is written once,
+ * in UTF-8, and later referenced by its dictionary index, which pays off when limiters share
+ * keys. State words are zigzag varints of the difference from the same word of the previous
+ * record, so clustered timestamps shrink to a byte or two.
+ *
+ * <pre>
+ * snapshot := MAGIC varint(VERSION) section* 0
+ * section  := 1 string(name) record* varint(0)
+ * record   := varint((index + 1) &lt;&lt; 1 | isNew) [string(key) if new] varint(length) zigzag(word delta)*
+ * string   := varint(byte length) UTF-8 bytes
+ * </pre>
+ */
+class LimiterSnapshot {
+    private static final int MAGIC = 0x524c_5353; // "RLSS"
+    private static final int VERSION = 1;
+    private static final int SECTION = 1;
+    private static final int END = 0;
+    private static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_STATE_WORDS = 1 << 20; // far above any limiter's per-key state, e.g. a full sliding log
+    static final int MAX_KEY_BYTES = 1 << 16;
+
+    private LimiterSnapshot() {}
+
+    /** Writes every named limiter to {@code file}, replacing it atomically, and returns the records written. */
+    public static long write(Map<String, ? extends StatefulRateLimiter> limiters, Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long records;
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            records = write(limiters, out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return records;
+    }
+
+    /** Imports the sections named in {@code limiters} and returns the records restored; other sections are skipped. */
+    public static long read(Path file, Map<String, ? extends StatefulRateLimiter> limiters) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in, limiters);
+        }
+    }
+
+    public static long write(Map<String, ? extends StatefulRateLimiter> limiters, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(out);
+        try {
+            encoder.writeFixedInt(MAGIC);
+            encoder.writeVarint(VERSION);
+            for (Map.Entry<String, ? extends StatefulRateLimiter> entry : limiters.entrySet()) {
+                encoder.writeVarint(SECTION);
+                encoder.writeString(entry.getKey());
+                encoder.resetDeltas();
+                entry.getValue().exportState(encoder::writeRecord);
+                encoder.writeVarint(0);
+            }
+            encoder.writeVarint(END);
+            encoder.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return encoder.records;
+    }
+
+    public static long read(InputStream in, Map<String, ? extends StatefulRateLimiter> limiters) throws IOException {
+        Decoder decoder = new Decoder(in);
+        if (decoder.readFixedInt() != MAGIC || decoder.readVarint() != VERSION) {
+            throw new IOException("not a limiter snapshot");
+        }
+        List<String> dictionary = new ArrayList<>();
+        long[] words = new long[16];
+        long[] previous = new long[16];
+        long records = 0;
+        for (long tag = decoder.readVarint(); tag != END; tag = decoder.readVarint()) {
+            if (tag != SECTION) throw new IOException("corrupt snapshot: unknown tag " + tag);
+            StatefulRateLimiter limiter = limiters.get(decoder.readString());
+            Arrays.fill(previous, 0);
+            for (long reference = decoder.readVarint(); reference != 0; reference = decoder.readVarint()) {
+                String apiKey;
+                if ((reference & 1) != 0) {
+                    apiKey = decoder.readString();
+                    dictionary.add(apiKey);
+                } else {
+                    long index = (reference >>> 1) - 1;
+                    if (index < 0 || index >= dictionary.size()) throw new IOException("corrupt snapshot: key " + index);
+                    apiKey = dictionary.get((int) index);
+                }
+                long declared = decoder.readVarint();
+                if (declared < 0 || declared > MAX_STATE_WORDS) {
+                    throw new IOException("corrupt snapshot: " + declared + " state words for " + apiKey);
+                }
+                int length = (int) declared;
+                if (length > words.length) {
+                    words = Arrays.copyOf(words, Math.max(length, words.length * 2));
+                    previous = Arrays.copyOf(previous, words.length);
+                }
+                for (int i = 0; i < length; i++) {
+                    long zigzag = decoder.readVarint();
+                    words[i] = previous[i] + ((zigzag >>> 1) ^ -(zigzag & 1));
+                    previous[i] = words[i];
+                }
+                if (limiter != null) {
+                    try {
+                        limiter.importState(apiKey, words, length);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("corrupt snapshot: " + e.getMessage(), e);
+                    }
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static final class Encoder {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private long[] previous = new long[16];
+        private int position;
+        long records;
+
+        Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        void resetDeltas() {
+            Arrays.fill(previous, 0);
+        }
+
+        void writeRecord(String apiKey, long[] words, int length) {
+            if (length > MAX_STATE_WORDS) {
+                throw new IllegalArgumentException(length + " state words for " + apiKey + " exceed " + MAX_STATE_WORDS);
+            }
+            try {
+                Integer index = dictionary.get(apiKey);
+                if (index == null) {
+                    writeVarint((long) (dictionary.size() + 1) << 1 | 1);
+                    dictionary.put(apiKey, dictionary.size());
+                    writeString(apiKey);
+                } else {
+                    writeVarint((long) (index + 1) << 1);
+                }
+                writeVarint(length);
+                if (length > previous.length) {
+                    previous = Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+                }
+                for (int i = 0; i < length; i++) {
+                    long delta = words[i] - previous[i];
+                    writeVarint((delta << 1) ^ (delta >> 63));
+                    previous[i] = words[i];
+                }
+                records++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeFixedInt(int value) throws IOException {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte(value >>> shift);
+            }
+        }
+
+        void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_KEY_BYTES) {
+                throw new IllegalArgumentException("key of " + bytes.length + " bytes exceeds " + MAX_KEY_BYTES);
+            }
+            writeVarint(bytes.length);
+            if (bytes.length > buffer.length - position) {
+                flushBuffer();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeByte(int value) throws IOException {
+            if (position == buffer.length) flushBuffer();
+            buffer[position++] = (byte) value;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    private static final class Decoder {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        int readFixedInt() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | readByte();
+            }
+            return value;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("corrupt snapshot: varint too long");
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > MAX_KEY_BYTES) throw new IOException("corrupt snapshot: string of " + length + " bytes");
+            int size = (int) length;
+            if (size <= limit - position) {
+                String value = new String(buffer, position, size, StandardCharsets.UTF_8);
+                position += size;
+                return value;
+            }
+            byte[] bytes = new byte[size];
+            int copied = limit - position;
+            System.arraycopy(buffer, position, bytes, 0, copied);
+            position = limit;
+            if (in.readNBytes(bytes, copied, size - copied) != size - copied) {
+                throw new EOFException("truncated snapshot");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    throw new EOFException("truncated snapshot");
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+}
+
+/**
+ * Periodically checkpoints limiter state so a restarted node resumes with its tenants' current
+ * buckets instead of granting everyone a fresh burst. On-heap limiters are restored from their
+ * checkpoint file when registered; file-backed {@link OffHeapStateTable}s need only be flushed.
+ * Checkpoints are written as {@link LimiterSnapshot}s; files in the older
+ * {@link LimiterStateFile} format are still restored and are rewritten as snapshots on the next
+ * checkpoint.
+ */
+class LimiterCheckpointer implements AutoCloseable {
+    private static final String SECTION = "limiter";
+
+    private interface Checkpoint {
+        void run() throws IOException;
+    }
+
+    private final List<Checkpoint> checkpoints = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "limiter-checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LimiterCheckpointer(Duration period) {
+        long periodMs = period.toMillis();
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                checkpointNow();
+            } catch (IOException e) {
+                System.err.println("Limiter checkpoint failed: " + e);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Restores {@code limiter} from {@code file} if it exists, then checkpoints it there. Returns the keys restored. */
+    public int register(StatefulRateLimiter limiter, Path file) throws IOException {
+        Map<String, StatefulRateLimiter> sections = Map.of(SECTION, limiter);
+        int restored = 0;
+        if (Files.exists(file)) {
+            restored = LimiterStateFile.matches(file)
+                    ? LimiterStateFile.read(file, limiter)
+                    : Math.toIntExact(LimiterSnapshot.read(file, sections));
+        }
+        checkpoints.add(() -> LimiterSnapshot.write(sections, file));
+        return restored;
+    }
+
+    public void register(OffHeapStateTable table) {
+        checkpoints.add(table::checkpoint);
+    }
+
+    public synchronized void checkpointNow() throws IOException {
+        for (Checkpoint checkpoint : checkpoints) {
+            checkpoint.run();
+        }
+    }
+
+    /** Stops the schedule and takes a final checkpoint. */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        checkpointNow();
+    }
+}
+
+/**
+ * Hashed timer wheel run by one daemon thread. Scheduling is a lock-free enqueue, and expiry
+ * costs O(1) per tick plus the timers due, so thousands of waiting acquirers share one thread
+ * instead of one timer each. Tasks run on the wheel thread and must be short.
+ */
+class TimerWheel {
+    private static final class Holder {
+        static final TimerWheel SHARED = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 512);
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long tick; // owned by the wheel thread
+
+    private static class Timeout {
+        final Runnable task;
+        final long deadlineNanos;
+        long remainingRounds;
+
+        Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("tickNanos must be positive and wheelSize a power of two");
+        }
+        this.tickNanos = tickNanos;
+        this.wheel = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        Thread worker = new Thread(this::run, "rate-limiter-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static TimerWheel shared() {
+        return Holder.SHARED;
+    }
+
+    public long tickNanos() {
+        return tickNanos;
+    }
+
+    public void schedule(Runnable task, long delayNanos) {
+        pending.add(new Timeout(task, System.nanoTime() + Math.max(0, delayNanos)));
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            for (long wait = tickEnd - System.nanoTime(); wait > 0; wait = tickEnd - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+            transferPending();
+            expire(wheel[(int) (tick & (wheel.length - 1))]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll()) {
+            // The first tick whose end is at or after the deadline, but never one already passed
+            long dueTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & (wheel.length - 1))].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable e) {
+                // One bad task must not stop every other timer
+                System.err.println("Timer task failed: " + e);
+            }
+        }
+    }
+}
+
+/**
+ * Queues callers until permits are available instead of rejecting them. Limiters that can
+ * compute their next refill (token and leaky buckets) are retried exactly when enough permits
+ * will exist; others are retried every timer tick. Waits never spin or hold a thread: the
+ * blocking {@link #acquire} parks on a future, which suits virtual threads. The timer only
+ * times the retries; each one, and the completion it triggers, runs on {@code executor}.
+ */
+class AsyncRateLimiter {
+    private final RateLimiter limiter;
+    private final TimerWheel timer;
+    private final Executor executor;
+
+    public AsyncRateLimiter(RateLimiter limiter) {
+        this(limiter, TimerWheel.shared());
+    }
+
+    public AsyncRateLimiter(RateLimiter limiter, TimerWheel timer) {
+        this(limiter, timer, ForkJoinPool.commonPool());
+    }
+
+    public AsyncRateLimiter(RateLimiter limiter, TimerWheel timer, Executor executor) {
+        this.limiter = limiter;
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    /**
+     * Completes once the permits are taken, or exceptionally if they never can be. Cancelling
+     * the future stops further attempts. Continuations run on the calling thread if the permits
+     * are available at once, otherwise on the executor, unless attached with an async variant.
+     */
+    public CompletableFuture<Void> acquireAsync(String apiKey, int permits) {
+        RateLimiter.requirePositive(permits);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        attempt(apiKey, permits, future);
+        return future;
+    }
+
+    public void acquire(String apiKey, int permits) throws InterruptedException {
+        CompletableFuture<Void> future = acquireAsync(apiKey, permits);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    private void attempt(String apiKey, int permits, CompletableFuture<Void> future) {
+        if (future.isDone()) return;
+        long delay;
+        try {
+            delay = limiter.tryAcquireOrDelay(apiKey, permits);
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        if (delay == 0) {
+            future.complete(null);
+        } else if (delay == RateLimiter.NEVER) {
+            future.completeExceptionally(new IllegalArgumentException(
+                    permits + " permits can never be acquired for " + apiKey));
+        } else {
+            timer.schedule(() -> retry(apiKey, permits, future), delay < 0 ? timer.tickNanos() : delay);
+        }
+    }
+
+    // Runs on the timer thread, so it only hands the attempt over.
+    private void retry(String apiKey, int permits, CompletableFuture<Void> future) {
+        if (future.isDone()) return;
+        try {
+            executor.execute(() -> attempt(apiKey, permits, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
+
+/**
+ * Traffic-shaping leaky bucket: instead of rejecting a burst it queues up to {@code capacity}
+ * tasks per key and releases them at exactly {@code leakRate} per second, so downstream sees
+ * an even stream. Each key has a lock-free queue bounded by a reservation counter; all keys
+ * share one {@link TimerWheel} thread, which only times the releases and hands each due task to
+ * {@code executor}. A key's first task is released one interval after it is queued. When the
+ * timer tick is coarser than the release interval, a drain catches up on at most one tick of
+ * releases.
+ */
+class LeakyBucketShaper {
+    private static final int RETIRED = -1;
+
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long intervalNanos;
+    private final TickSource ticks;
+    private final TimerWheel timer;
+    private final Executor executor;
+
+    public LeakyBucketShaper(int capacity, int leakRate, TickSource ticks) {
+        this(capacity, leakRate, ticks, TimerWheel.shared(), ForkJoinPool.commonPool());
+    }
+
+    public LeakyBucketShaper(int capacity, int leakRate, TickSource ticks, TimerWheel timer, Executor executor) {
+        if (capacity <= 0 || leakRate <= 0) {
+            throw new IllegalArgumentException("capacity and leakRate must be positive");
+        }
+        this.capacity = capacity;
+        this.intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(1) / leakRate);
+        this.ticks = ticks;
+        this.timer = timer;
+        this.executor = executor;
+    }
+
+    private static class Lane {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger reserved = new AtomicInteger(); // queued plus being queued, or RETIRED
+        final AtomicBoolean draining = new AtomicBoolean();
+        long nextReleaseNanos; // owned by whoever holds draining
+
+        Lane(long nextReleaseNanos) {
+            this.nextReleaseNanos = nextReleaseNanos;
+        }
+    }
+
+    /** Queues the task for release, or returns THROTTLED without queueing it if the key's queue is full. */
+    public RequestStatus submit(String apiKey, Runnable task) {
+        Objects.requireNonNull(task, "task");
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(apiKey, k -> new Lane(ticks.nanos() + intervalNanos));
+            int reserved = lane.reserved.get();
+            if (reserved == RETIRED) {
+                lanes.remove(apiKey, lane);
+                continue;
+            }
+            if (reserved >= capacity) {
+                return RequestStatus.THROTTLED;
+            }
+            if (!lane.reserved.compareAndSet(reserved, reserved + 1)) {
+                continue;
+            }
+            lane.tasks.add(task);
+            if (lane.draining.compareAndSet(false, true)) {
+                timer.schedule(() -> drain(apiKey, lane), lane.nextReleaseNanos - ticks.nanos());
+            }
+            return RequestStatus.ALLOWED;
+        }
+    }
+
+    /** Tasks waiting for release under the key, 0 if none. */
+    public int queued(String apiKey) {
+        Lane lane = lanes.get(apiKey);
+        return lane == null ? 0 : Math.max(0, lane.reserved.get());
+    }
+
+    // Only one drain per lane is scheduled at a time; it ends by rescheduling or retiring the lane.
+    private void drain(String apiKey, Lane lane) {
+        long nowNanos = ticks.nanos();
+        while (nowNanos - lane.nextReleaseNanos >= 0) {
+            Runnable task = lane.tasks.poll();
+            if (task == null) {
+                if (lane.reserved.compareAndSet(0, RETIRED)) {
+                    // Idle and due: a fresh lane starts a whole interval out, so the rate holds
+                    lanes.remove(apiKey, lane);
+                    return;
+                }
+                // A submitter reserved a slot and is about to enqueue; look again next tick
+                timer.schedule(() -> drain(apiKey, lane), timer.tickNanos());
+                return;
+            }
+            lane.reserved.decrementAndGet();
+            lane.nextReleaseNanos = Math.max(lane.nextReleaseNanos, nowNanos - timer.tickNanos()) + intervalNanos;
+            release(task);
+        }
+        timer.schedule(() -> drain(apiKey, lane), lane.nextReleaseNanos - nowNanos);
+    }
+
+    private void release(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Shaped task failed: " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.err.println("Shaped task rejected: " + e);
+        }
+    }
+}
+
+interface LeaseMetrics {
+    long decisions();
+
+    /** Decisions served from a local lease without waiting on the central limiter. */
+    long localHits();
+
+    long centralCalls();
+
+    long permitsLeased();
+
+    long permitsReturned();
+
+    /** Permits currently held locally across all keys, i.e. taken centrally but not yet spent. */
+    long heldPermits();
+
+    /**
+     * Most permits one node can hold for one key, so how far local admissions can run ahead
+     * of the central limiter per key: the local spending may lag the central decision by up to
+     * the lease TTL.
+     */
+    long overAdmissionBoundPerKey();
+
+    default double hitRate() {
+        long decisions = decisions();
+        return decisions == 0 ? 0 : localHits() / (double) decisions;
+    }
+}
+
+/**
+ * Fronts a central limiter (typically a {@link DistributedRateLimiter} or a remote service)
+ * with local per-key leases. Permits are claimed with {@link RateLimiter#acquireUpTo}, topping
+ * the lease up to {@code leaseSize}, and spent with a CAS decrement; when a lease falls below
+ * {@code lowWatermark} it is topped up on {@code refillExecutor}, so steady traffic rarely
+ * waits for the central limiter. Claims for one lease are serialized, so a lease never holds
+ * more than {@code leaseSize} permits, or briefly one larger request; callers that run dry
+ * while a claim is in flight park until it completes. Permits unspent when a
+ * lease expires are handed back with {@link RateLimiter#release}.
+ *
+ * A key the central limiter refuses costs one central call per request until it admits again,
+ * since only the central limiter knows when that is.
+ */
+class QuotaLeaseRateLimiter implements RateLimiter, LeaseMetrics {
+    private final RateLimiter central;
+    private final int leaseSize;
+    private final int lowWatermark;
+    private final long leaseTtlNanos;
+    private final TickSource ticks;
+    private final Executor refillExecutor;
+    private final TimerWheel timer;
+    private final KeyStateStore<Lease> leases;
+    private final Function<String, Lease> newLease = Lease::new;
+    private final LongAdder decisions = new LongAdder();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder centralCalls = new LongAdder();
+    private final LongAdder permitsLeased = new LongAdder();
+    private final LongAdder permitsReturned = new LongAdder();
+    private final LongAdder heldPermits = new LongAdder();
+
+    public QuotaLeaseRateLimiter(RateLimiter central, int leaseSize, int lowWatermark, Duration leaseTtl, TickSource ticks) {
+        this(central, leaseSize, lowWatermark, leaseTtl, ticks, ForkJoinPool.commonPool(), TimerWheel.shared(),
+                KeyStatePolicy.UNBOUNDED);
+    }
+
+    public QuotaLeaseRateLimiter(RateLimiter central, int leaseSize, int lowWatermark, Duration leaseTtl, TickSource ticks,
+                                 Executor refillExecutor, TimerWheel timer, KeyStatePolicy keyStatePolicy) {
+        if (leaseSize <= 0 || lowWatermark < 0 || lowWatermark >= leaseSize) {
+            throw new IllegalArgumentException("need leaseSize > 0 and 0 <= lowWatermark < leaseSize");
+        }
+        if (leaseTtl.isNegative() || leaseTtl.isZero()) {
+            throw new IllegalArgumentException("leaseTtl must be positive");
+        }
+        this.central = central;
+        this.leaseSize = leaseSize;
+        this.lowWatermark = lowWatermark;
+        this.leaseTtlNanos = leaseTtl.toNanos();
+        this.ticks = ticks;
+        this.refillExecutor = refillExecutor;
+        this.timer = timer;
+        this.leases = new KeyStateStore<>(keyStatePolicy, ticks, 96); // Lease and its atomics
+    }
+
+    public LeaseMetrics leaseMetrics() {
+        return this;
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return leases;
+    }
+
+    // Survives eviction from the store: its expiry timer still hands the permits back.
+    private static final class Lease {
+        final String key;
+        final AtomicLong permits = new AtomicLong();
+        final AtomicReference<CompletableFuture<Void>> claim = new AtomicReference<>(); // in flight, completed when done
+        final AtomicBoolean expiryScheduled = new AtomicBoolean();
+        volatile long expiresAtNanos;
+        volatile boolean dry; // the last claim came back short, so don't refill in the background
+
+        Lease(String key) {
+            this.key = key;
+        }
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(apiKey, permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(apiKey, permits, true);
+    }
+
+    @Override
+    public void release(String apiKey, int permits) {
+        RateLimiter.requirePositive(permits);
+        long nowNanos = ticks.nanos();
+        Lease lease = leases.computeIfAbsent(apiKey, newLease, TickSource.toMillis(nowNanos));
+        lease.permits.addAndGet(permits);
+        heldPermits.add(permits);
+    }
+
+    private int acquire(String apiKey, int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        decisions.increment();
+        long nowNanos = ticks.nanos();
+        Lease lease = leases.computeIfAbsent(apiKey, newLease, TickSource.toMillis(nowNanos));
+        if (nowNanos - lease.expiresAtNanos >= 0) {
+            expire(lease);
+        }
+
+        int granted = take(lease, permits, partial);
+        if (granted == permits) {
+            localHits.increment();
+        } else {
+            granted += claimAndTake(lease, permits - granted, partial);
+        }
+        if (lease.permits.get() < lowWatermark && !lease.dry && lease.claim.get() == null) {
+            CompletableFuture<Void> refill = new CompletableFuture<>();
+            if (lease.claim.compareAndSet(null, refill)) {
+                try {
+                    refillExecutor.execute(() -> {
+                        try {
+                            if (lease.permits.get() < lowWatermark) {
+                                claim(lease, leaseSize);
+                            }
+                        } finally {
+                            endClaim(lease, refill);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    endClaim(lease, refill);
+                }
+            }
+        }
+        return granted;
+    }
+
+    // One claim per lease at a time; losers park on the claim in flight and then retry the lease.
+    private int claimAndTake(Lease lease, int permits, boolean partial) {
+        int granted = 0;
+        while (true) {
+            CompletableFuture<Void> inFlight = lease.claim.get();
+            if (inFlight != null) {
+                inFlight.join();
+                granted += take(lease, permits - granted, partial);
+                if (granted == permits) return granted;
+                continue;
+            }
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            if (!lease.claim.compareAndSet(null, mine)) continue;
+            try {
+                granted += take(lease, permits - granted, partial);
+                if (granted < permits) {
+                    claim(lease, Math.max(leaseSize, permits - granted));
+                    granted += take(lease, permits - granted, partial);
+                }
+                return granted;
+            } finally {
+                endClaim(lease, mine);
+            }
+        }
+    }
+
+    private static void endClaim(Lease lease, CompletableFuture<Void> claim) {
+        lease.claim.set(null);
+        claim.complete(null);
+    }
+
+    private int take(Lease lease, int permits, boolean partial) {
+        while (true) {
+            long held = lease.permits.get();
+            int granted = RateLimiter.grantable(held, permits, partial);
+            if (granted == 0) return 0;
+            if (lease.permits.compareAndSet(held, held - granted)) {
+                heldPermits.add(-granted);
+                return granted;
+            }
+        }
+    }
+
+    // Tops the lease up to target; callers own the lease's claim, so only release() adds concurrently.
+    private void claim(Lease lease, int target) {
+        long wanted = target - lease.permits.get();
+        if (wanted <= 0) return;
+        centralCalls.increment();
+        int claimed = central.acquireUpTo(lease.key, (int) wanted);
+        lease.dry = claimed < wanted;
+        if (claimed == 0) return;
+        // Extend the expiry before publishing the permits; expire re-checks it and keeps permits it covers.
+        lease.expiresAtNanos = ticks.nanos() + leaseTtlNanos;
+        lease.permits.addAndGet(claimed);
+        heldPermits.add(claimed);
+        permitsLeased.add(claimed);
+        if (lease.expiryScheduled.compareAndSet(false, true)) {
+            timer.schedule(() -> refillExecutor.execute(() -> onExpiryTimer(lease)), leaseTtlNanos);
+        }
+    }
+
+    private void onExpiryTimer(Lease lease) {
+        long remaining = lease.expiresAtNanos - ticks.nanos();
+        if (remaining > 0) {
+            timer.schedule(() -> refillExecutor.execute(() -> onExpiryTimer(lease)), remaining);
+            return;
+        }
+        lease.expiryScheduled.set(false);
+        expire(lease);
+    }
+
+    private void expire(Lease lease) {
+        long unused = lease.permits.getAndSet(0);
+        if (unused > 0 && ticks.nanos() - lease.expiresAtNanos < 0) {
+            // A claim renewed the lease after the caller saw it expire
+            lease.permits.addAndGet(unused);
+        } else if (unused > 0) {
+            heldPermits.add(-unused);
+            permitsReturned.add(unused);
+            central.release(lease.key, (int) unused);
+        }
+    }
+
+    @Override
+    public long decisions() {
+        return decisions.sum();
+    }
+
+    @Override
+    public long localHits() {
+        return localHits.sum();
+    }
+
+    @Override
+    public long centralCalls() {
+        return centralCalls.sum();
+    }
+
+    @Override
+    public long permitsLeased() {
+        return permitsLeased.sum();
+    }
+
+    @Override
+    public long permitsReturned() {
+        return permitsReturned.sum();
+    }
+
+    @Override
+    public long heldPermits() {
+        return heldPermits.sum();
+    }
+
+    @Override
+    public long overAdmissionBoundPerKey() {
+        // Serialized claims only top a lease up to leaseSize; a larger request takes its excess at once.
+        return leaseSize;
+    }
+}
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: 32 linear sub-buckets per power of
+ * two, so recorded values keep about 3% precision. Recording is a single atomic increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    public void record(long nanos) {
+        counts.getAndIncrement(index(Math.max(0, nanos)));
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.getAndAdd(i, count);
+        }
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /** Upper bound of the bucket holding the given percentile (0-100), or 0 if nothing was recorded. */
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) return upperBound(i);
+        }
+        return upperBound(counts.length() - 1);
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
+
+/**
+ * Concurrency limiter that finds its own limit from observed latency, AIMD style with a
+ * Vegas-like congestion signal: while the recent average RTT stays within {@code TOLERANCE}
+ * of the lowest seen, and the limit is actually in use, the limit grows by its square root per
+ * window; once queueing inflates RTT beyond that, or requests are reported as dropped
+ * (timeouts, overload errors), it is cut by {@code BACKOFF}. A backend that became slower for
+ * good drives the limit to {@code minLimit}, where the minimum RTT is taken afresh. The limit
+ * is global; keys are accepted for the {@link RateLimiter} contract but share it.
+ *
+ * <p>Callers report every admitted request through {@link #complete} with its RTT, or through
+ * {@link #drop}; {@link #release} returns permits without a sample. Returning more permits
+ * than are in flight throws {@link IllegalStateException}. Samples go into
+ * {@link LongAdder}s, and whichever thread first sees the window end folds them into the
+ * limit, so the hot path takes no lock.
+ */
+class AdaptiveConcurrencyLimiter implements RateLimiter {
+    private static final double TOLERANCE = 1.5;    // RTT inflation accepted before backing off
+    private static final double BACKOFF = 0.9;
+    private static final int MIN_SAMPLES = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final TickSource ticks;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rttSum = new LongAdder();
+    private final LongAdder rttCount = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final AtomicLong windowEndNanos;
+    private volatile double limit;
+    private volatile double minRtt; // successive windows are closed by different threads
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, TickSource ticks) {
+        this(initialLimit, minLimit, maxLimit, Duration.ofMillis(100), ticks);
+    }
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Duration window, TickSource ticks) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("expected 0 < minLimit <= initialLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.windowNanos = window.toNanos();
+        this.ticks = ticks;
+        this.limit = initialLimit;
+        this.windowEndNanos = new AtomicLong(ticks.nanos() + windowNanos);
+    }
+
+    public int limit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        return acquire(permits, false) > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED;
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        return acquire(permits, true);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        int granted = acquire(permits, false);
+        return decision.set(granted > 0 ? RequestStatus.ALLOWED : RequestStatus.THROTTLED,
+                Math.max(0, limit() - inFlight.get()), RateLimitDecision.UNKNOWN, granted > 0 ? 0 : UNKNOWN_DELAY);
+    }
+
+    /** Reports admitted permits as finished after {@code rttNanos}. */
+    public void complete(String apiKey, int permits, long rttNanos) {
+        returnPermits(permits);
+        rttSum.add(rttNanos);
+        rttCount.increment();
+        maybeUpdate();
+    }
+
+    /** Reports admitted permits as failed from overload, e.g. timed out. */
+    public void drop(String apiKey, int permits) {
+        returnPermits(permits);
+        drops.increment();
+        maybeUpdate();
+    }
+
+    /** Returns permits without a latency sample, e.g. for a request cancelled before it was sent. */
+    @Override
+    public void release(String apiKey, int permits) {
+        returnPermits(permits);
+    }
+
+    // A second report for the same request, or one without an acquire, would free another request's slot.
+    private void returnPermits(int permits) {
+        RateLimiter.requirePositive(permits);
+        while (true) {
+            int current = inFlight.get();
+            if (current < permits) {
+                throw new IllegalStateException(permits + " permits returned but only " + current + " in flight");
+            }
+            if (inFlight.compareAndSet(current, current - permits)) return;
+        }
+    }
+
+    private int acquire(int permits, boolean partial) {
+        RateLimiter.requirePositive(permits);
+        while (true) {
+            int current = inFlight.get();
+            int granted = RateLimiter.grantable(limit() - current, permits, partial);
+            if (granted == 0) return 0;
+            if (inFlight.compareAndSet(current, current + granted)) return granted;
+        }
+    }
+
+    private void maybeUpdate() {
+        long nowNanos = ticks.nanos();
+        long windowEnd = windowEndNanos.get();
+        if (nowNanos - windowEnd < 0) return;
+        if (rttCount.sum() < MIN_SAMPLES && drops.sum() == 0) return;
+        if (!windowEndNanos.compareAndSet(windowEnd, nowNanos + windowNanos)) return;
+
+        long count = rttCount.sumThenReset();
+        long sum = rttSum.sumThenReset();
+        long dropped = drops.sumThenReset();
+        double current = limit;
+        double next = current;
+        double shortRtt = count == 0 ? 0 : sum / (double) count;
+        double minRtt = this.minRtt;
+        if (count > 0) {
+            // Still inflated at the floor means the backend itself got slower, not queued: re-baseline
+            minRtt = minRtt == 0 || current <= minLimit ? shortRtt : Math.min(shortRtt, minRtt);
+            this.minRtt = minRtt;
+        }
+        if (dropped > 0 || shortRtt > TOLERANCE * minRtt) {
+            next = current * BACKOFF;
+        } else {
+            // Only grow while the limit is used; by Little's law RTT-time per elapsed time is mean concurrency
+            double concurrency = sum / (double) Math.max(1, nowNanos - (windowEnd - windowNanos));
+            if (concurrency >= current / 2) {
+                next = current + Math.sqrt(current);
+            }
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+}
+
+/** Point-in-time view of an {@link InstrumentedRateLimiter}. */
+class LimiterMetrics {
+    final String name;
+    final long allowed;
+    final long throttled;
+    final long sampledCalls;
+    final long p50Nanos;
+    final long p99Nanos;
+    final long p999Nanos;
+    final long keyCount;       // -1 if unknown
+    final long estimatedBytes; // -1 if unknown
+    final List<KeyCount> topKeys;
+
+    /** Decisions for one key, scaled up from the sampled calls. */
+    static final class KeyCount {
+        final String apiKey;
+        final long allowed;
+        final long throttled;
+
+        KeyCount(String apiKey, long allowed, long throttled) {
+            this.apiKey = apiKey;
+            this.allowed = allowed;
+            this.throttled = throttled;
+        }
+
+        @Override
+        public String toString() {
+            return apiKey + "=" + allowed + "/" + throttled;
+        }
+    }
+
+    LimiterMetrics(String name, long allowed, long throttled, LatencyHistogram latencies, KeyStateMetrics keys,
+                   List<KeyCount> topKeys) {
+        this.name = name;
+        this.allowed = allowed;
+        this.throttled = throttled;
+        this.sampledCalls = latencies.count();
+        this.p50Nanos = latencies.percentile(50);
+        this.p99Nanos = latencies.percentile(99);
+        this.p999Nanos = latencies.percentile(99.9);
+        this.keyCount = keys == null ? -1 : keys.keyCount();
+        this.estimatedBytes = keys == null ? -1 : keys.estimatedBytes();
+        this.topKeys = topKeys;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: allowed=%d throttled=%d p50=%dns p99=%dns p99.9=%dns keys=%d bytes=%d top=%s",
+                name, allowed, throttled, p50Nanos, p99Nanos, p999Nanos, keyCount, estimatedBytes, topKeys);
+    }
+}
+
+/**
+ * Counts allowed and throttled decisions of any {@link RateLimiter}, and for one call in
+ * {@code sampleRate} also records its latency and offers its key to a space-saving top-N
+ * tracker. An unsampled call costs one random draw and one {@link LongAdder} increment;
+ * sampled calls add two clock reads and a lock that contended threads skip rather than wait
+ * on. Pull a {@link LimiterMetrics} with {@link #snapshot()}.
+ */
+class InstrumentedRateLimiter implements RateLimiter {
+    private final RateLimiter delegate;
+    private final String name;
+    private final int sampleMask;
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final TopKeys topKeys;
+
+    public InstrumentedRateLimiter(String name, RateLimiter delegate) {
+        this(name, delegate, 256, 10);
+    }
+
+    public InstrumentedRateLimiter(String name, RateLimiter delegate, int sampleRate, int topN) {
+        if (Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("sampleRate must be a power of two");
+        }
+        this.name = name;
+        this.delegate = delegate;
+        this.sampleMask = sampleRate - 1;
+        this.topKeys = new TopKeys(topN);
+    }
+
+    public LimiterMetrics snapshot() {
+        return new LimiterMetrics(name, allowed.sum(), throttled.sum(), latencies, delegate.keyStateMetrics(),
+                topKeys.top(sampleMask + 1L));
+    }
+
+    @Override
+    public KeyStateMetrics keyStateMetrics() {
+        return delegate.keyStateMetrics();
+    }
+
+    @Override
+    public RequestStatus tryAcquire(String apiKey, int permits) {
+        if (!sampled()) {
+            return count(delegate.tryAcquire(apiKey, permits));
+        }
+        long begin = System.nanoTime();
+        RequestStatus status = delegate.tryAcquire(apiKey, permits);
+        latencies.record(System.nanoTime() - begin);
+        topKeys.offer(apiKey, status == RequestStatus.ALLOWED);
+        return count(status);
+    }
+
+    @Override
+    public int acquireUpTo(String apiKey, int permits) {
+        if (!sampled()) {
+            return count(delegate.acquireUpTo(apiKey, permits));
+        }
+        long begin = System.nanoTime();
+        int granted = delegate.acquireUpTo(apiKey, permits);
+        latencies.record(System.nanoTime() - begin);
+        topKeys.offer(apiKey, granted > 0);
+        return count(granted);
+    }
+
+    @Override
+    public RateLimitDecision decide(String apiKey, int permits, RateLimitDecision decision) {
+        if (!sampled()) {
+            count(delegate.decide(apiKey, permits, decision).getStatus());
+            return decision;
+        }
+        long begin = System.nanoTime();
+        delegate.decide(apiKey, permits, decision);
+        latencies.record(System.nanoTime() - begin);
+        topKeys.offer(apiKey, decision.getStatus() == RequestStatus.ALLOWED);
+        count(decision.getStatus());
+        return decision;
+    }
+
+    @Override
+    public void release(String apiKey, int permits) {
+        delegate.release(apiKey, permits);
+    }
+
+    private boolean sampled() {
+        return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0;
+    }
+
+    private RequestStatus count(RequestStatus status) {
+        (status == RequestStatus.ALLOWED ? allowed : throttled).increment();
+        return status;
+    }
+
+    private int count(int granted) {
+        (granted > 0 ? allowed : throttled).increment();
+        return granted;
+    }
+
+    /**
+     * Space-saving heavy hitters over the sampled keys: a full table hands its smallest
+     * counter to the newcomer, which inherits that count as its possible overestimate.
+     */
+    private static final class TopKeys {
+        private final int topN;
+        private final int capacity;
+        private final Map<String, long[]> counters = new HashMap<>(); // [allowed, throttled]
+        private final ReentrantLock lock = new ReentrantLock();
 
-        Bucket(int initialTokens, long startTimeMillis) {
-            this.currentTokens = new AtomicLong(initialTokens);
-            this.lastRefillTimeMillis = startTimeMillis;
+        TopKeys(int topN) {
+            this.topN = topN;
+            this.capacity = Math.max(16, topN * 4);
         }
-    }
 
-    @Override
-    public RequestStatus allowRequest(String apiKey) {
-        long nowMillis = Instant.now(clock).toEpochMilli();
-        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
-                k -> new Bucket(capacity, nowMillis));
+        void offer(String apiKey, boolean allowed) {
+            if (!lock.tryLock()) return;
+            try {
+                long[] counter = counters.get(apiKey);
+                if (counter == null) {
+                    counter = counters.size() < capacity ? new long[2] : evictSmallest();
+                    counters.put(apiKey, counter);
+                }
+                counter[allowed ? 0 : 1]++;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-        synchronized (bucket) {
-            refillTokens(bucket, nowMillis);
+        private long[] evictSmallest() {
+            Map.Entry<String, long[]> smallest = null;
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                if (smallest == null || total(entry.getValue()) < total(smallest.getValue())) {
+                    smallest = entry;
+                }
+            }
+            counters.remove(smallest.getKey());
+            return smallest.getValue();
+        }
 
-            if (bucket.currentTokens.get() > 0) {
-                bucket.currentTokens.decrementAndGet();
-                return RequestStatus.ALLOWED;
+        List<LimiterMetrics.KeyCount> top(long scale) {
+            List<Map.Entry<String, long[]>> entries = new ArrayList<>();
+            lock.lock();
+            try {
+                for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                    entries.add(Map.entry(entry.getKey(), entry.getValue().clone()));
+                }
+            } finally {
+                lock.unlock();
             }
-            return RequestStatus.THROTTLED;
+            entries.sort((a, b) -> Long.compare(total(b.getValue()), total(a.getValue())));
+            List<LimiterMetrics.KeyCount> top = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : entries.subList(0, Math.min(topN, entries.size()))) {
+                top.add(new LimiterMetrics.KeyCount(entry.getKey(), entry.getValue()[0] * scale, entry.getValue()[1] * scale));
+            }
+            return top;
+        }
+
+        private static long total(long[] counter) {
+            return counter[0] + counter[1];
         }
     }
+}
 
-    private void refillTokens(Bucket bucket, long nowMillis) {
-        long elapsedTimeMs = nowMillis - bucket.lastRefillTimeMillis;
-        if (refillRate <= 0) return;
+/**
+ * {@link HttpServer} filter that admits each exchange through a limiter before any handler
+ * runs. Rejections are answered with 429 from the filter itself, so the request body is never
+ * read or buffered. Keyed limiters also set X-RateLimit-Remaining, X-RateLimit-Reset and
+ * Retry-After (whole seconds, rounded up) from the same {@link RateLimitDecision}; limiters
+ * that look at the whole request receive it as an {@link APIRequest}.
+ *
+ * <p>Rejections from keyed limiters are coalesced: once a key is throttled, its retry-after
+ * deadline is remembered and further requests for that key before the deadline are rejected
+ * without consulting the limiter, so a client hammering past its quota costs one map lookup
+ * per request. Permits {@link RateLimiter#release released} early are only seen once the
+ * deadline passes. At most {@code maxCoalescedKeys} keys are remembered at a time; each
+ * throttled request also checks a few remembered keys and drops those whose deadline has
+ * passed, so keys that never come back do not hold the space.
+ */
+class RateLimitFilter extends Filter {
+    static final String API_KEY_HEADER = "X-API-Key";
+    static final int TOO_MANY_REQUESTS = 429;
+    private static final byte[] REJECTED_BODY = "Too Many Requests\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int SWEEP_BATCH = 8;
 
-        long tokensToAdd = (long) (elapsedTimeMs * (refillRate / 1000.0));
+    private final RateLimiter limiter;
+    private final RequestRateLimiter requestLimiter;
+    private final Function<HttpExchange, String> keyExtractor;
+    private final ConcurrentHashMap<String, Long> throttledUntilNanos = new ConcurrentHashMap<>();
+    private final int maxCoalescedKeys;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Long>> sweepCursor; // guarded by sweepLock
+    private final LongAdder coalescedRejections = new LongAdder();
 
-        if (tokensToAdd > 0) {
-            long newTokens = Math.min(bucket.currentTokens.get() + tokensToAdd, capacity);
-            bucket.currentTokens.set(newTokens);
+    public RateLimitFilter(RateLimiter limiter) {
+        this(limiter, RateLimitFilter::apiKey);
+    }
 
-            long timeAdvanced = (long) (tokensToAdd * (1000.0 / refillRate));
-            bucket.lastRefillTimeMillis += timeAdvanced;
-        }
+    public RateLimitFilter(RateLimiter limiter, Function<HttpExchange, String> keyExtractor) {
+        this(limiter, keyExtractor, 100_000);
     }
-}
 
-class LeakyBucketRateLimiter implements RateLimiter {
-    private final Map<String, Bucket> userBuckets = new ConcurrentHashMap<>();
-    private final int capacity;
-    private final int leakRate; // Requests leaked (processed) per second
-    private final long windowUnitMs = 1000L;
-    private final Clock clock;
+    public RateLimitFilter(RateLimiter limiter, Function<HttpExchange, String> keyExtractor, int maxCoalescedKeys) {
+        this(limiter, null, keyExtractor, maxCoalescedKeys);
+    }
 
-    public LeakyBucketRateLimiter(int capacity, int leakRate, Clock clock) {
-        this.capacity = capacity;
-        this.leakRate = leakRate;
-        this.clock = clock;
+    public RateLimitFilter(RequestRateLimiter requestLimiter) {
+        this(requestLimiter, RateLimitFilter::apiKey);
     }
 
-    private static class Bucket {
-        final AtomicInteger waterLevel = new AtomicInteger(0);
-        volatile long lastLeakTimestampMillis;
+    public RateLimitFilter(RequestRateLimiter requestLimiter, Function<HttpExchange, String> keyExtractor) {
+        this(null, requestLimiter, keyExtractor, 0);
+    }
 
-        Bucket(long initialTimeMillis) {
-            this.lastLeakTimestampMillis = initialTimeMillis;
-        }
+    private RateLimitFilter(RateLimiter limiter, RequestRateLimiter requestLimiter,
+                            Function<HttpExchange, String> keyExtractor, int maxCoalescedKeys) {
+        this.limiter = limiter;
+        this.requestLimiter = requestLimiter;
+        this.keyExtractor = keyExtractor;
+        this.maxCoalescedKeys = maxCoalescedKeys;
+    }
+
+    /** Requests rejected from a remembered deadline without a limiter call. */
+    public long coalescedRejections() {
+        return coalescedRejections.sum();
+    }
+
+    /** The X-API-Key header, or the client's address when it is missing. */
+    static String apiKey(HttpExchange exchange) {
+        String apiKey = exchange.getRequestHeaders().getFirst(API_KEY_HEADER);
+        return apiKey != null ? apiKey : exchange.getRemoteAddress().getAddress().getHostAddress();
     }
 
     @Override
-    public RequestStatus allowRequest(String apiKey) {
-        long nowMillis = Instant.now(clock).toEpochMilli();
-        Bucket bucket = userBuckets.computeIfAbsent(apiKey,
-                k -> new Bucket(nowMillis));
+    public String description() {
+        return "Rejects requests over their rate limit with 429";
+    }
 
-        synchronized (bucket) {
-            leakRequests(bucket, nowMillis);
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String apiKey = keyExtractor.apply(exchange);
+        RequestStatus status;
+        if (limiter != null) {
+            long nowNanos = System.nanoTime();
+            Long throttledUntil = throttledUntilNanos.get(apiKey);
+            if (throttledUntil != null) {
+                long waitNanos = throttledUntil - nowNanos;
+                if (waitNanos > 0) {
+                    Headers headers = exchange.getResponseHeaders();
+                    headers.set("X-RateLimit-Remaining", "0");
+                    headers.set("Retry-After", Long.toString(ceilSeconds(waitNanos)));
+                    coalescedRejections.increment();
+                    reject(exchange);
+                    return;
+                }
+                throttledUntilNanos.remove(apiKey, throttledUntil);
+            }
+            RateLimitDecision decision = limiter.decide(apiKey, 1, RateLimitDecision.scratch());
+            status = decision.getStatus();
+            setHeaders(exchange.getResponseHeaders(), decision);
+            long retryAfterNanos = decision.getRetryAfterNanos();
+            if (status == RequestStatus.THROTTLED && retryAfterNanos > 0 && retryAfterNanos != RateLimiter.NEVER
+                    && maxCoalescedKeys > 0) {
+                sweepExpired(nowNanos);
+                if (throttledUntilNanos.size() < maxCoalescedKeys) {
+                    throttledUntilNanos.put(apiKey, nowNanos + retryAfterNanos);
+                }
+            }
+        } else {
+            APIRequest request = new APIRequest(apiKey, exchange.getRequestURI().getPath(), Instant.now());
+            status = requestLimiter.allowRequest(request);
+        }
+        if (status == RequestStatus.ALLOWED) {
+            chain.doFilter(exchange);
+            return;
+        }
+        reject(exchange);
+    }
 
-            if (bucket.waterLevel.get() < capacity) {
-                bucket.waterLevel.incrementAndGet();
-                return RequestStatus.ALLOWED;
+    // Checks the next few remembered keys, resuming where the last sweep stopped.
+    private void sweepExpired(long nowNanos) {
+        if (!sweepLock.tryLock()) return;
+        try {
+            for (int i = 0; i < SWEEP_BATCH; i++) {
+                if (sweepCursor == null || !sweepCursor.hasNext()) {
+                    sweepCursor = throttledUntilNanos.entrySet().iterator();
+                    if (!sweepCursor.hasNext()) return;
+                }
+                Map.Entry<String, Long> entry = sweepCursor.next();
+                if (entry.getValue() - nowNanos <= 0) {
+                    throttledUntilNanos.remove(entry.getKey(), entry.getValue());
+                }
             }
-            return RequestStatus.THROTTLED;
+        } finally {
+            sweepLock.unlock();
         }
     }
 
-    private void leakRequests(Bucket bucket, long nowMillis) {
-        long elapsedTime = nowMillis - bucket.lastLeakTimestampMillis;
-        int leakedAmount = (int) ((elapsedTime / (double)windowUnitMs) * leakRate);
+    private static void reject(HttpExchange exchange) throws IOException {
+        // A sized body rather than none: the JDK server drops the connection after a bodiless response
+        exchange.sendResponseHeaders(TOO_MANY_REQUESTS, REJECTED_BODY.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(REJECTED_BODY);
+        }
+    }
 
-        if (leakedAmount > 0) {
-            bucket.waterLevel.updateAndGet(current -> Math.max(0, current - leakedAmount));
-            bucket.lastLeakTimestampMillis = nowMillis;
+    private static void setHeaders(Headers headers, RateLimitDecision decision) {
+        if (decision.getRemaining() >= 0) {
+            headers.set("X-RateLimit-Remaining", Long.toString(decision.getRemaining()));
+        }
+        if (decision.getResetNanos() >= 0 && decision.getResetNanos() != RateLimiter.NEVER) {
+            headers.set("X-RateLimit-Reset", Long.toString(ceilSeconds(decision.getResetNanos())));
+        }
+        long retryAfterNanos = decision.getRetryAfterNanos();
+        if (retryAfterNanos > 0 && retryAfterNanos != RateLimiter.NEVER) {
+            headers.set("Retry-After", Long.toString(ceilSeconds(retryAfterNanos)));
         }
     }
+
+    private static long ceilSeconds(long nanos) {
+        return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+    }
 }
 
-class FixedWindowRateLimiter implements RateLimiter {
-    private final Map<String, Window> userWindows = new ConcurrentHashMap<>();
-    private final int limit;
-    private final long windowSizeMs;
-    private final Clock clock;
+/**
+ * Limiter configurations shared by the benchmarks: each limiter in an open regime (limits far
+ * above the offered load) and a throttled one (one permit per key per minute). The throughput
+ * and latency scenarios are JMH benchmarks in the {@code benchmarks} module; this class reports
+ * what JMH does not measure.
+ *
+ * Run with {@code java -Xmx8g RateLimiterBenchmark --footprint=100000 [--limiters=token,leaky,...]
+ * [--ticks=system|coarse]} for heap plus direct memory retained per key, or
+ * {@code --snapshot=100000} for {@link LimiterSnapshot} size and export and import speed.
+ */
+class RateLimiterBenchmark {
+    static final int KEY_SAMPLES = 1 << 20;
+    private static final double ZIPF_EXPONENT = 0.99;
 
-    public FixedWindowRateLimiter(int limit, long windowSizeMs, Clock clock) {
-        this.limit = limit;
-        this.windowSizeMs = windowSizeMs;
-        this.clock = clock;
+    enum Distribution { UNIFORM, ZIPFIAN }
+
+    enum Regime { OPEN, THROTTLED }
+
+    interface LimiterFactory {
+        RateLimiter create(Regime regime, int keys, TickSource ticks);
     }
 
-    private static class Window {
-        final AtomicInteger requestCount = new AtomicInteger(0);
-        volatile long windowStartTime;
+    static final Map<String, LimiterFactory> LIMITERS = new LinkedHashMap<>();
+    static {
+        LIMITERS.put("token", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new TokenBucketRateLimiter(1_000_000, 1_000_000_000L, ticks) : new TokenBucketRateLimiter(1, 0, ticks));
+        LIMITERS.put("lockfree", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new LockFreeTokenBucketRateLimiter(1_000_000, 1_000_000_000L, ticks) : new LockFreeTokenBucketRateLimiter(1, 0, ticks));
+        LIMITERS.put("gcra", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new GcraRateLimiter(1_000_000, 1_000_000_000L, ticks) : new GcraRateLimiter(1, 0, ticks));
+        LIMITERS.put("leaky", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new LeakyBucketRateLimiter(1_000_000, 1_000_000_000, ticks) : new LeakyBucketRateLimiter(1, 0, ticks));
+        LIMITERS.put("fixed", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new FixedWindowRateLimiter(Integer.MAX_VALUE, 1, ticks) : new FixedWindowRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("aligned", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new AlignedFixedWindowRateLimiter(AlignedFixedWindowRateLimiter.MAX_LIMIT, 1, ticks)
+                : new AlignedFixedWindowRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("shared", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new SharedWindowRateLimiter(Integer.MAX_VALUE, 1, ticks) : new SharedWindowRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("log", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new SlidingWindowLogRateLimiter(logLimit(keys), 1, ticks) : new SlidingWindowLogRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("counter", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new SlidingWindowCounterRateLimiter(Integer.MAX_VALUE, 1, ticks) : new SlidingWindowCounterRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("sketch", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new SketchSlidingWindowRateLimiter(Integer.MAX_VALUE, 1, ticks) : new SketchSlidingWindowRateLimiter(1, 60_000, ticks));
+        LIMITERS.put("distributed", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new DistributedRateLimiter(new LoopbackLimiterStore(ticks), "bench", Integer.MAX_VALUE, 1_000, 1024, ticks)
+                : new DistributedRateLimiter(new LoopbackLimiterStore(ticks), "bench", 1, 60_000, 1, ticks));
+        LIMITERS.put("striped", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new StripedTokenBucketRateLimiter(1_000_000, 1_000_000_000L, ticks) : new StripedTokenBucketRateLimiter(1, 0, ticks));
+        LIMITERS.put("offheap-token", (regime, keys, ticks) -> regime == Regime.OPEN
+                ? new OffHeapTokenBucketRateLimiter(1_000_000, 1_000_000_000L, ticks, new OffHeapStateTable(keys))
+                : new OffHeapTokenBucketRateLimiter(1, 0, ticks, new OffHeapStateTable(keys)));
+    }
 
-        Window(long startTime) {
-            this.windowStartTime = startTime;
+    // The log keeps `limit` timestamps per key, so size it to what fits in half the heap.
+    private static int logLimit(int keys) {
+        long perKey = Runtime.getRuntime().maxMemory() / 2 / keys / Long.BYTES;
+        return (int) Math.min(4096, perKey);
+    }
+
+    public static void main(String[] args) {
+        List<String> limiters = new ArrayList<>(LIMITERS.keySet());
+        TickSource ticks = TickSource.system();
+        int footprintKeys = 0;
+        int snapshotKeys = 0;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--limiters=")) limiters = Arrays.asList(value.split(","));
+            else if (arg.startsWith("--ticks=")) ticks = value.equals("coarse") ? TickSource.coarse() : TickSource.system();
+            else if (arg.startsWith("--footprint=")) footprintKeys = Integer.parseInt(value);
+            else if (arg.startsWith("--snapshot=")) snapshotKeys = Integer.parseInt(value);
+            else throw new IllegalArgumentException("unknown option " + arg);
+        }
+        if (footprintKeys > 0) {
+            footprint(limiters, footprintKeys, ticks);
+        } else if (snapshotKeys > 0) {
+            snapshot(limiters, snapshotKeys, ticks);
+        } else {
+            throw new IllegalArgumentException("expected --footprint=N or --snapshot=N");
         }
     }
 
-    @Override
-    public RequestStatus allowRequest(String apiKey) {
-        long currentTimeMillis = Instant.now(clock).toEpochMilli();
-        Window window = userWindows.computeIfAbsent(apiKey,
-                k -> new Window(currentTimeMillis));
+    // Throttled limiters hold the smallest state each key can have, e.g. a one-entry sliding log.
+    static void footprint(List<String> limiters, int keys, TickSource ticks) {
+        String[] keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key-" + i;
+        }
+        System.out.printf("%-14s %8s %12s%n", "limiter", "keys", "bytes/key");
+        for (String name : limiters) {
+            LimiterFactory factory = LIMITERS.get(name);
+            if (factory == null) throw new IllegalArgumentException("unknown limiter " + name);
+            long before = retainedBytes();
+            RateLimiter limiter = factory.create(Regime.THROTTLED, keys, ticks);
+            for (String key : keyNames) {
+                limiter.allowRequest(key);
+            }
+            long after = retainedBytes();
+            Reference.reachabilityFence(limiter);
+            System.out.printf("%-14s %8d %12.1f%n", name, keys, (after - before) / (double) keys);
+        }
+    }
 
-        synchronized (window) {
-            if (currentTimeMillis - window.windowStartTime >= windowSizeMs) {
-                window.windowStartTime = currentTimeMillis;
-                window.requestCount.set(0);
+    // Throttled limiters so every key holds state; limiters that cannot export state are skipped.
+    static void snapshot(List<String> limiters, int keys, TickSource ticks) {
+        String[] keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key-" + i;
+        }
+        System.out.printf("%-14s %8s %10s %14s %14s%n", "limiter", "keys", "bytes/key", "export keys/s", "import keys/s");
+        for (String name : limiters) {
+            LimiterFactory factory = LIMITERS.get(name);
+            if (factory == null) throw new IllegalArgumentException("unknown limiter " + name);
+            RateLimiter source = factory.create(Regime.THROTTLED, keys, ticks);
+            if (!(source instanceof StatefulRateLimiter)) continue;
+            for (String key : keyNames) {
+                source.allowRequest(key);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long exportNanos = System.nanoTime();
+            try {
+                LimiterSnapshot.write(Map.of(name, (StatefulRateLimiter) source), out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            exportNanos = System.nanoTime() - exportNanos;
+            StatefulRateLimiter target = (StatefulRateLimiter) factory.create(Regime.THROTTLED, keys, ticks);
+            long importNanos = System.nanoTime();
+            long imported;
+            try {
+                imported = LimiterSnapshot.read(new ByteArrayInputStream(out.toByteArray()), Map.of(name, target));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            importNanos = System.nanoTime() - importNanos;
+            System.out.printf("%-14s %8d %10.1f %14.0f %14.0f%n", name, imported, out.size() / (double) keys,
+                    keys * 1e9 / exportNanos, imported * 1e9 / importNanos);
+        }
+    }
 
-            if (window.requestCount.get() < limit) {
-                window.requestCount.incrementAndGet();
-                return RequestStatus.ALLOWED;
+    private static long retainedBytes() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        long bytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bytes += pool.getMemoryUsed();
+        }
+        return bytes;
+    }
+
+    // Pre-drawn key indexes so the measured loop does no random number generation.
+    static int[] sampleKeys(int keys, Distribution distribution) {
+        int[] samples = new int[KEY_SAMPLES];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (distribution == Distribution.UNIFORM) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = random.nextInt(keys);
             }
-            return RequestStatus.THROTTLED;
+            return samples;
+        }
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
         }
+        for (int i = 0; i < samples.length; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            samples[i] = Math.min(keys - 1, index >= 0 ? index : -index - 1);
+        }
+        return samples;
     }
 }
 
-class SlidingWindowLogRateLimiter implements RateLimiter {
-    private final Map<String, Deque<Long>> userLogs = new ConcurrentHashMap<>();
-    private final int limit;
-    private final long windowSizeMs;
-    private final Clock clock;
+/**
+ * Measures the latency {@link RateLimitFilter} adds end to end: a paced load generator sends
+ * keep-alive requests over loopback at a fixed total rate to an {@link HttpServer} context with
+ * and without the filter. Latency is taken from each request's scheduled send time, so a
+ * stalled server is not hidden by the generator falling behind.
+ */
+class HttpFilterBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rate = 100_000;
+        int connections = 64;
+        long millis = 5000;
+        int keys = 1000;
+        String limiterName = "lockfree";
+        RateLimiterBenchmark.Regime regime = RateLimiterBenchmark.Regime.OPEN;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--rate=")) rate = Integer.parseInt(value);
+            else if (arg.startsWith("--connections=")) connections = Integer.parseInt(value);
+            else if (arg.startsWith("--millis=")) millis = Long.parseLong(value);
+            else if (arg.startsWith("--keys=")) keys = Integer.parseInt(value);
+            else if (arg.startsWith("--limiter=")) limiterName = value;
+            else if (arg.startsWith("--regime=")) regime = RateLimiterBenchmark.Regime.valueOf(value.toUpperCase());
+            else throw new IllegalArgumentException("unknown option " + arg);
+        }
+        RateLimiterBenchmark.LimiterFactory factory = RateLimiterBenchmark.LIMITERS.get(limiterName);
+        if (factory == null) throw new IllegalArgumentException("unknown limiter " + limiterName);
 
-    public SlidingWindowLogRateLimiter(int limit, long windowSizeMs, Clock clock) {
-        this.limit = limit;
-        this.windowSizeMs = windowSizeMs;
-        this.clock = clock;
+        System.setProperty("sun.net.httpserver.nodelay", "true"); // else Nagle stalls each split response
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server.setExecutor(executor);
+        HttpHandler ok = exchange -> {
+            byte[] body = {'o', 'k'};
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        };
+        server.createContext("/plain", ok);
+        server.createContext("/limited", ok).getFilters()
+                .add(new RateLimitFilter(factory.create(regime, keys, TickSource.system())));
+        server.start();
+        try {
+            int port = server.getAddress().getPort();
+            System.out.printf("%-8s %10s %10s %10s %9s %9s %9s %9s%n",
+                    "path", "target/s", "actual/s", "429s", "p50 us", "p99 us", "p99.9 us", "max us");
+            for (String path : new String[] {"/plain", "/limited", "/plain", "/limited"}) { // first pair warms up
+                Result result = load(port, path, keys, rate, connections, millis);
+                System.out.printf("%-8s %10d %10.0f %10d %9.1f %9.1f %9.1f %9.1f%n", path, rate, result.requestsPerSecond,
+                        result.rejected.sum(), result.latencies.percentile(50) / 1e3, result.latencies.percentile(99) / 1e3,
+                        result.latencies.percentile(99.9) / 1e3, result.latencies.percentile(100) / 1e3);
+            }
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
     }
 
-    @Override
-    public RequestStatus allowRequest(String apiKey) {
-        long currentTimeMillis = Instant.now(clock).toEpochMilli();
-        Deque<Long> timestamps = userLogs.computeIfAbsent(apiKey,
-                k -> new ConcurrentLinkedDeque<>());
+    static class Result {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder completed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        double requestsPerSecond;
+    }
 
-        synchronized (timestamps) {
-            long windowStartBoundary = currentTimeMillis - windowSizeMs;
+    static Result load(int port, String path, int keys, int rate, int connections, long millis) throws Exception {
+        byte[][] requests = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            requests[i] = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + RateLimitFilter.API_KEY_HEADER
+                    + ": key-" + i + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        Result result = new Result();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(connections) / rate;
+        long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        Thread[] clients = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            long firstNanos = startNanos + intervalNanos * c / connections;
+            clients[c] = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    for (long sendNanos = firstNanos; sendNanos < endNanos; sendNanos += intervalNanos) {
+                        for (long wait = sendNanos - System.nanoTime(); wait > 0; wait = sendNanos - System.nanoTime()) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        out.write(requests[ThreadLocalRandom.current().nextInt(keys)]);
+                        out.flush();
+                        if (readResponse(in) == RateLimitFilter.TOO_MANY_REQUESTS) {
+                            result.rejected.increment();
+                        }
+                        result.latencies.record(System.nanoTime() - sendNanos);
+                        result.completed.increment();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        result.requestsPerSecond = result.completed.sum() * 1e9 / Math.max(1, System.nanoTime() - startNanos);
+        return result;
+    }
 
-            // 1. Clean up: Remove expired timestamps
-            while (!timestamps.isEmpty() && timestamps.peekFirst() < windowStartBoundary) {
-                timestamps.removeFirst();
+    /** Reads one response, skipping its body, and returns the status code. */
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = 0;
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Long.parseLong(line.substring(15).trim());
             }
+        }
+        for (long skipped = 0; skipped < contentLength; skipped++) {
+            if (in.read() < 0) throw new IOException("connection closed mid-body");
+        }
+        return status;
+    }
 
-            if (timestamps.size() < limit) {
-                timestamps.addLast(currentTimeMillis);
-                return RequestStatus.ALLOWED;
-            }
-            return RequestStatus.THROTTLED;
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) throw new IOException("connection closed");
+            if (b != '\r') line.append((char) b);
         }
+        return line.toString();
     }
 }
 
-class SlidingWindowCounterRateLimiter implements RateLimiter {
-    private final Map<String, WindowPair> userWindows = new ConcurrentHashMap<>();
-    private final int limit;
-    private final long windowSizeMs;
-    private final Clock clock;
+/**
+ * Replays a request trace through limiters on a {@link ManualTickSource}, so hours of traffic
+ * run in seconds and every run admits exactly the same requests. The trace is either a file of
+ * {@code epochMillis apiKey [apiUrl]} lines in time order, or a seeded synthetic stream:
+ * Poisson arrivals over Zipf-distributed keys, optionally crowded around window boundaries.
+ *
+ * <p>Each limiter allows {@code limit} requests per {@code window}. The report compares its
+ * admitted count with a sliding window log, the exact limiter for that rule, and shows the most
+ * requests any key got through within one window as a multiple of the limit: 1.0 is ideal, a
+ * fixed window can reach 2.0 at its boundaries. Cost is the replay time less that of a no-op
+ * limiter over the same trace.
+ */
+class TraceReplayHarness {
+    private static final long SYNTHETIC_START_MILLIS = 1_700_000_000_000L;
+    private static final double ZIPF_EXPONENT = 1.0;
 
-    public SlidingWindowCounterRateLimiter(int limit, long windowSizeMs, Clock clock) {
-        this.limit = limit;
-        this.windowSizeMs = windowSizeMs;
-        this.clock = clock;
+    enum Shape { POISSON, BOUNDARY }
+
+    interface ReplayFactory {
+        RateLimiter create(int limit, long windowMs, TickSource ticks);
     }
 
-    private static class WindowPair {
-        long currentWindowStartTime;
-        int currentWindowCount;
-        int prevWindowCount;
+    static final Map<String, ReplayFactory> LIMITERS = new LinkedHashMap<>();
+    static {
+        LIMITERS.put("token", (limit, windowMs, ticks) -> new TokenBucketRateLimiter(limit, perSecond(limit, windowMs), ticks));
+        LIMITERS.put("lockfree", (limit, windowMs, ticks) -> new LockFreeTokenBucketRateLimiter(limit, perSecond(limit, windowMs), ticks));
+        LIMITERS.put("gcra", (limit, windowMs, ticks) -> new GcraRateLimiter(limit, perSecond(limit, windowMs), ticks));
+        LIMITERS.put("leaky", (limit, windowMs, ticks) -> new LeakyBucketRateLimiter(limit, (int) perSecond(limit, windowMs), ticks));
+        LIMITERS.put("fixed", FixedWindowRateLimiter::new);
+        LIMITERS.put("aligned", AlignedFixedWindowRateLimiter::new);
+        LIMITERS.put("shared", SharedWindowRateLimiter::new);
+        LIMITERS.put("log", SlidingWindowLogRateLimiter::new);
+        LIMITERS.put("counter", SlidingWindowCounterRateLimiter::new);
+        LIMITERS.put("sketch", SketchSlidingWindowRateLimiter::new);
+        LIMITERS.put("distributed", (limit, windowMs, ticks) -> new DistributedRateLimiter(
+                new LoopbackLimiterStore(ticks), "replay", limit, windowMs, Math.max(1, limit / 10), ticks));
+    }
 
-        WindowPair(long startTime) {
-            this.currentWindowStartTime = startTime;
-            this.currentWindowCount = 0;
-            this.prevWindowCount = 0;
+    private static long perSecond(int limit, long windowMs) {
+        return Math.max(1, limit * 1000L / windowMs);
+    }
+
+    public static void main(String[] args) {
+        Path tracePath = null;
+        long requests = 2_000_000;
+        int keys = 1000;
+        double ratePerSecond = 20_000;
+        Shape shape = Shape.POISSON;
+        int limit = 10;
+        long windowMs = 1000;
+        long seed = 42;
+        List<String> limiters = new ArrayList<>(LIMITERS.keySet());
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--trace=")) tracePath = Path.of(value);
+            else if (arg.startsWith("--requests=")) requests = Long.parseLong(value);
+            else if (arg.startsWith("--keys=")) keys = Integer.parseInt(value);
+            else if (arg.startsWith("--rate=")) ratePerSecond = Double.parseDouble(value);
+            else if (arg.startsWith("--shape=")) shape = Shape.valueOf(value.toUpperCase());
+            else if (arg.startsWith("--limit=")) limit = Integer.parseInt(value);
+            else if (arg.startsWith("--window=")) windowMs = Long.parseLong(value);
+            else if (arg.startsWith("--seed=")) seed = Long.parseLong(value);
+            else if (arg.startsWith("--limiters=")) limiters = Arrays.asList(value.split(","));
+            else throw new IllegalArgumentException("unknown option " + arg);
+        }
+        Path file = tracePath;
+        long count = requests;
+        int keyCount = keys;
+        double rate = ratePerSecond;
+        Shape traceShape = shape;
+        long window = windowMs;
+        long traceSeed = seed;
+        Supplier<Iterator<APIRequest>> trace = file != null ? () -> readTrace(file)
+                : () -> syntheticTrace(count, keyCount, rate, traceShape, window, traceSeed);
+
+        long idealAdmitted = replay(null, SlidingWindowLogRateLimiter::new, trace.get(), limit, windowMs, false).admitted;
+        RateLimiter noop = (apiKey, permits) -> RequestStatus.ALLOWED;
+        replay(noop, null, trace.get(), limit, windowMs, false); // warm up the trace source
+        long baselineNanos = replay(noop, null, trace.get(), limit, windowMs, false).elapsedNanos;
+
+        System.out.printf("%-12s %12s %12s %9s %11s %12s%n",
+                "limiter", "requests", "admitted", "vs ideal", "max/window", "ns/decision");
+        for (String name : limiters) {
+            ReplayFactory factory = LIMITERS.get(name);
+            if (factory == null) throw new IllegalArgumentException("unknown limiter " + name);
+            Result timed = replay(null, factory, trace.get(), limit, windowMs, false);
+            Result audited = replay(null, factory, trace.get(), limit, windowMs, true);
+            System.out.printf("%-12s %12d %12d %+8.2f%% %11.2f %12.1f%n", name, audited.requests, audited.admitted,
+                    (audited.admitted - idealAdmitted) * 100.0 / Math.max(1, idealAdmitted),
+                    audited.maxPerWindow / (double) limit,
+                    Math.max(0, timed.elapsedNanos - baselineNanos) / (double) Math.max(1, timed.requests));
         }
     }
 
-    @Override
-    public RequestStatus allowRequest(String apiKey) {
-        long currentTimeMillis = Instant.now(clock).toEpochMilli();
-        long currentWindowStartBoundary = (currentTimeMillis / windowSizeMs) * windowSizeMs;
+    static class Result {
+        long requests;
+        long admitted;
+        int maxPerWindow; // most admissions any key had within one window; 0 unless audited
+        long elapsedNanos;
+    }
 
-        WindowPair pair = userWindows.computeIfAbsent(apiKey,
-                k -> new WindowPair(currentWindowStartBoundary));
+    /**
+     * Runs the trace through {@code limiter}, or through one made by {@code factory} on a fresh
+     * virtual clock. With {@code audit} every admission is also checked against the window rule,
+     * which is left out of the timing runs.
+     */
+    static Result replay(RateLimiter limiter, ReplayFactory factory, Iterator<APIRequest> trace,
+                         int limit, long windowMs, boolean audit) {
+        Result result = new Result();
+        ManualTickSource clock = null;
+        Map<String, ArrayDeque<Long>> admissions = audit ? new HashMap<>() : null;
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        long startNanos = System.nanoTime();
+        while (trace.hasNext()) {
+            APIRequest request = trace.next();
+            long nowNanos = request.getTimestamp().getEpochSecond() * 1_000_000_000L + request.getTimestamp().getNano();
+            if (clock == null) {
+                clock = new ManualTickSource(nowNanos);
+                if (limiter == null) limiter = factory.create(limit, windowMs, clock);
+            }
+            clock.setNanos(nowNanos);
+            result.requests++;
+            if (limiter.allowRequest(request.getApiKey()) != RequestStatus.ALLOWED) continue;
+            result.admitted++;
+            if (audit) {
+                ArrayDeque<Long> admitted = admissions.computeIfAbsent(request.getApiKey(), k -> new ArrayDeque<>());
+                while (!admitted.isEmpty() && nowNanos - admitted.peekFirst() >= windowNanos) {
+                    admitted.pollFirst();
+                }
+                admitted.addLast(nowNanos);
+                result.maxPerWindow = Math.max(result.maxPerWindow, admitted.size());
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
 
-        synchronized (pair) {
-            // 1. Window Transition Logic
-            if (currentWindowStartBoundary > pair.currentWindowStartTime) {
-                pair.prevWindowCount = pair.currentWindowCount;
-                pair.currentWindowCount = 0;
-                pair.currentWindowStartTime = currentWindowStartBoundary;
+    /** Streams {@code epochMillis apiKey [apiUrl]} lines, separated by spaces or commas; '#' starts a comment. */
+    static Iterator<APIRequest> readTrace(Path path) {
+        BufferedReader reader;
+        try {
+            reader = Files.newBufferedReader(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<APIRequest>() {
+            private APIRequest next = advance();
+
+            private APIRequest advance() {
+                try {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) continue;
+                        String[] fields = line.split("[\\s,]+");
+                        if (fields.length < 2) {
+                            throw new IllegalArgumentException("expected 'epochMillis apiKey [apiUrl]' but got: " + line);
+                        }
+                        return new APIRequest(fields[1], fields.length > 2 ? fields[2] : "/",
+                                Instant.ofEpochMilli(Long.parseLong(fields[0])));
+                    }
+                    reader.close();
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
 
-            // 2. Calculate Weighted Count
-            double currentWindowFraction = (currentTimeMillis - pair.currentWindowStartTime) / (double) windowSizeMs;
-            long weightedCount = (long) (pair.prevWindowCount * (1.0 - currentWindowFraction) + pair.currentWindowCount);
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
 
-            // 3. Check and Increment
-            if (weightedCount < limit) {
-                pair.currentWindowCount++;
-                return RequestStatus.ALLOWED;
+            @Override
+            public APIRequest next() {
+                if (next == null) throw new NoSuchElementException();
+                APIRequest current = next;
+                next = advance();
+                return current;
             }
-            return RequestStatus.THROTTLED;
+        };
+    }
+
+    /**
+     * Poisson arrivals at {@code ratePerSecond} over Zipf-distributed keys, the same for the same
+     * seed. {@link Shape#BOUNDARY} keeps the rate but confines arrivals to the twentieth of a
+     * window either side of each window boundary, the worst case for fixed windows.
+     */
+    static Iterator<APIRequest> syntheticTrace(long requests, int keys, double ratePerSecond, Shape shape,
+                                               long windowMs, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] keyNames = new String[keys];
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key-" + i;
+            sum += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
         }
+        double total = sum;
+        double meanGapNanos = 1e9 / ratePerSecond;
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        long edgeNanos = windowNanos / 20;
+        return new Iterator<APIRequest>() {
+            private long emitted;
+            private long nanos = TimeUnit.MILLISECONDS.toNanos(SYNTHETIC_START_MILLIS);
+
+            @Override
+            public boolean hasNext() {
+                return emitted < requests;
+            }
+
+            @Override
+            public APIRequest next() {
+                if (emitted >= requests) throw new NoSuchElementException();
+                emitted++;
+                nanos += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+                if (shape == Shape.BOUNDARY) {
+                    long offset = Math.floorMod(nanos, windowNanos);
+                    if (offset >= edgeNanos && offset < windowNanos - edgeNanos) {
+                        nanos += windowNanos - edgeNanos - offset;
+                    }
+                }
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                String apiKey = keyNames[Math.min(keys - 1, index < 0 ? -index - 1 : index)];
+                return new APIRequest(apiKey, "/", Instant.ofEpochSecond(0, nanos));
+            }
+        };
     }
 }
 
@@ -299,13 +5670,21 @@ public class RateLimitingSystem {
         }
     }
 
+    private void runRequests(RequestRateLimiter limiter, APIRequest request, int count, String limiterName) {
+        System.out.printf("\nTesting %s for %s %s\n", limiterName, request.getApiKey(), request.getApiUrl());
+        for (int i = 1; i <= count; i++) {
+            RequestStatus status = limiter.allowRequest(request);
+            System.out.printf("Request %d: %s\n", i, status);
+        }
+    }
+
     private void pause(long milliseconds) throws InterruptedException {
         TimeUnit.MILLISECONDS.sleep(milliseconds);
     }
 
-    public void demoTokenBucket(String apiKey, int limit, long windowMs, Clock clock) throws InterruptedException {
+    public void demoTokenBucket(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
         long refillRatePerSecond = (long) (limit * 1000.0 / windowMs);
-        TokenBucketRateLimiter tokenLimiter = new TokenBucketRateLimiter(limit, refillRatePerSecond, clock);
+        TokenBucketRateLimiter tokenLimiter = new TokenBucketRateLimiter(limit, refillRatePerSecond, ticks);
 
         System.out.println("Token Bucket Rate Limiter");
 
@@ -318,10 +5697,40 @@ public class RateLimitingSystem {
         runRequests(tokenLimiter, apiKey, 3, "Token Bucket (Burst 2)");
     }
 
-    public void demoLeakyBucket(String apiKey, int limit, Clock clock) throws InterruptedException {
+    public void demoLockFreeTokenBucket(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
+        long refillRatePerSecond = (long) (limit * 1000.0 / windowMs);
+        LockFreeTokenBucketRateLimiter tokenLimiter = new LockFreeTokenBucketRateLimiter(limit, refillRatePerSecond, ticks);
+
+        System.out.println("Lock-Free Token Bucket Rate Limiter");
+
+        runRequests(tokenLimiter, apiKey, limit + 1, "Lock-Free Token Bucket (Burst 1)");
+
+        long waitTime = windowMs / 2;
+        System.out.printf("\nPausing for %dms to allow token refill\n", waitTime);
+        pause(waitTime);
+
+        runRequests(tokenLimiter, apiKey, 3, "Lock-Free Token Bucket (Burst 2)");
+    }
+
+    public void demoGcra(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
+        long refillRatePerSecond = (long) (limit * 1000.0 / windowMs);
+        GcraRateLimiter gcraLimiter = new GcraRateLimiter(limit, refillRatePerSecond, ticks);
+
+        System.out.println("GCRA Rate Limiter");
+
+        runRequests(gcraLimiter, apiKey, limit + 1, "GCRA (Burst 1)");
+
+        long waitTime = windowMs / 2;
+        System.out.printf("\nPausing for %dms to allow the arrival time to catch up\n", waitTime);
+        pause(waitTime);
+
+        runRequests(gcraLimiter, apiKey, 3, "GCRA (Burst 2)");
+    }
+
+    public void demoLeakyBucket(String apiKey, int limit, TickSource ticks) throws InterruptedException {
         int capacity = 5;
         int leakRate = 2;
-        LeakyBucketRateLimiter leakyLimiter = new LeakyBucketRateLimiter(capacity, leakRate, clock);
+        LeakyBucketRateLimiter leakyLimiter = new LeakyBucketRateLimiter(capacity, leakRate, ticks);
 
         System.out.println("Leaky Bucket Rate Limiter");
         System.out.printf("Capacity: %d, Leak Rate: %d req/s.\n", capacity, leakRate);
@@ -335,8 +5744,32 @@ public class RateLimitingSystem {
         runRequests(leakyLimiter, apiKey, 3, "Leaky Bucket (Post Leak Check)");
     }
 
-    public void demoFixedWindow(String apiKey, int limit, long windowMs, Clock clock) throws InterruptedException {
-        FixedWindowRateLimiter fixedLimiter = new FixedWindowRateLimiter(limit, windowMs, clock);
+    public void demoLeakyBucketShaper(String apiKey, TickSource ticks) throws InterruptedException {
+        int capacity = 4;
+        int leakRate = 10;
+        LeakyBucketShaper shaper = new LeakyBucketShaper(capacity, leakRate, ticks);
+        CountDownLatch released = new CountDownLatch(capacity);
+        long startNanos = ticks.nanos();
+
+        System.out.println("Leaky Bucket Shaper");
+        System.out.printf("Queue: %d, Leak Rate: %d req/s.\n", capacity, leakRate);
+
+        for (int i = 1; i <= capacity + 2; i++) {
+            int request = i;
+            RequestStatus status = shaper.submit(apiKey, () -> {
+                System.out.printf("Request %d released at %dms\n", request,
+                        TimeUnit.NANOSECONDS.toMillis(ticks.nanos() - startNanos));
+                released.countDown();
+            });
+            if (status == RequestStatus.THROTTLED) {
+                System.out.printf("Request %d: queue full\n", request);
+            }
+        }
+        released.await();
+    }
+
+    public void demoFixedWindow(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
+        FixedWindowRateLimiter fixedLimiter = new FixedWindowRateLimiter(limit, windowMs, ticks);
 
         System.out.println("Fixed Window Counter");
 
@@ -355,8 +5788,8 @@ public class RateLimitingSystem {
         runRequests(fixedLimiter, apiKey, limit, "Fixed Window (Window 2, Full Burst)");
     }
 
-    public void demoSlidingWindowLog(String apiKey, int limit, long windowMs, Clock clock) throws InterruptedException {
-        SlidingWindowLogRateLimiter logLimiter = new SlidingWindowLogRateLimiter(limit, windowMs, clock);
+    public void demoSlidingWindowLog(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
+        SlidingWindowLogRateLimiter logLimiter = new SlidingWindowLogRateLimiter(limit, windowMs, ticks);
 
         System.out.println("Sliding Window Log");
 
@@ -369,8 +5802,8 @@ public class RateLimitingSystem {
         runRequests(logLimiter, apiKey, 3, "Sliding Log");
     }
 
-    public void demoSlidingWindowCounter(String apiKey, int limit, long windowMs, Clock clock) throws InterruptedException {
-        SlidingWindowCounterRateLimiter slidingLimiter = new SlidingWindowCounterRateLimiter(limit, windowMs, clock);
+    public void demoSlidingWindowCounter(String apiKey, int limit, long windowMs, TickSource ticks) throws InterruptedException {
+        SlidingWindowCounterRateLimiter slidingLimiter = new SlidingWindowCounterRateLimiter(limit, windowMs, ticks);
 
         System.out.println("\nSliding Window Counter\n");
 
@@ -383,9 +5816,129 @@ public class RateLimitingSystem {
         runRequests(slidingLimiter, apiKey, 3, "Sliding Counter (Window 1/2 Transition)");
     }
 
+    public void demoDecisions(String apiKey, int limit, long windowMs, TickSource ticks) {
+        FixedWindowRateLimiter fixedLimiter = new FixedWindowRateLimiter(limit, windowMs, ticks);
+        RateLimitDecision decision = new RateLimitDecision();
+
+        System.out.println("Rate Limit Decisions (Fixed Window)");
+
+        for (int i = 1; i <= limit + 1; i++) {
+            fixedLimiter.decide(apiKey, 1, decision);
+            System.out.printf("Request %d: %s, remaining %d, reset in %dms, retry after %dms\n", i,
+                    decision.getStatus(), decision.getRemaining(),
+                    TimeUnit.NANOSECONDS.toMillis(decision.getResetNanos()),
+                    TimeUnit.NANOSECONDS.toMillis(decision.getRetryAfterNanos()));
+        }
+    }
+
+    public void demoPriorities(String apiKey, TickSource ticks) {
+        int capacity = 10;
+        TokenBucketRateLimiter priorityLimiter = new TokenBucketRateLimiter(capacity, 0, ticks, KeyStatePolicy.UNBOUNDED,
+                new PriorityReserve(0.2, 0.3, Duration.ofSeconds(1)));
+
+        System.out.println("Priority Classes (Token Bucket)");
+        System.out.printf("Capacity: %d, reserved 20%% for critical and 30%% for normal\n", capacity);
+
+        priorityLimiter.tryAcquire(apiKey, 1, Priority.CRITICAL);
+        priorityLimiter.tryAcquire(apiKey, 1, Priority.NORMAL);
+        for (Priority priority : new Priority[] {Priority.BATCH, Priority.NORMAL, Priority.CRITICAL}) {
+            int admitted = 0;
+            while (priorityLimiter.tryAcquire(apiKey, 1, priority) == RequestStatus.ALLOWED) {
+                admitted++;
+            }
+            System.out.printf("%-8s flood: %d admitted before throttling\n", priority, admitted);
+        }
+    }
+
+    public void demoMetrics(String apiKey, int limit, long windowMs, TickSource ticks) {
+        InstrumentedRateLimiter instrumented = new InstrumentedRateLimiter("token",
+                new TokenBucketRateLimiter(limit, limit * 1000L / windowMs, ticks), 1, 3);
+
+        System.out.println("Instrumented Rate Limiter");
+
+        for (int i = 0; i < limit + 2; i++) {
+            instrumented.allowRequest(apiKey);
+        }
+        instrumented.allowRequest("apiKey2");
+        System.out.println(instrumented.snapshot());
+    }
+
+    public void demoAdaptiveConcurrency(String apiKey) {
+        int backendCapacity = 20;
+        long baseRttNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        ManualTickSource simulated = new ManualTickSource(0);
+        AdaptiveConcurrencyLimiter adaptiveLimiter = new AdaptiveConcurrencyLimiter(4, 1, 1000, simulated);
+        PriorityQueue<long[]> completions = new PriorityQueue<>(Comparator.comparingLong((long[] c) -> c[0]));
+
+        System.out.println("Adaptive Concurrency Limiter");
+        System.out.printf("Simulated backend: %d concurrent requests at %dms, slower beyond that\n",
+                backendCapacity, TimeUnit.NANOSECONDS.toMillis(baseRttNanos));
+
+        for (int second = 1; second <= 10; second++) {
+            for (int ms = 0; ms < 1000; ms++) {
+                long nowNanos = simulated.nanos();
+                while (!completions.isEmpty() && completions.peek()[0] <= nowNanos) {
+                    adaptiveLimiter.complete(apiKey, 1, completions.poll()[1]);
+                }
+                while (adaptiveLimiter.allowRequest(apiKey) == RequestStatus.ALLOWED) {
+                    long rttNanos = baseRttNanos * Math.max(backendCapacity, adaptiveLimiter.inFlight()) / backendCapacity;
+                    completions.add(new long[] {nowNanos + rttNanos, rttNanos});
+                }
+                simulated.advance(Duration.ofMillis(1));
+            }
+            System.out.printf("After %2ds: limit %d\n", second, adaptiveLimiter.limit());
+        }
+    }
+
+    public void demoPolicies(APIRequest request, int limit, TickSource ticks) {
+        PolicyRegistry registry = new PolicyRegistry(PolicyRegistry.parse(List.of(
+                "* / default " + limit + " 1",
+                request.getApiKey() + " " + request.getApiUrl() + " tenant " + (limit - 2) + " 1")));
+        PolicyRateLimiter policyLimiter = new PolicyRateLimiter(registry, ticks);
+
+        System.out.println("Policy Rate Limiter");
+        System.out.printf("Tenant policy: %d, then reloaded to %d\n", limit - 2, limit);
+
+        runRequests(policyLimiter, request, limit - 1, "Policy (Tenant Quota)");
+
+        registry.reload(PolicyRegistry.parse(List.of(
+                "* / default " + limit + " 1",
+                request.getApiKey() + " " + request.getApiUrl() + " tenant " + limit + " 1")));
+        runRequests(policyLimiter, request, 3, "Policy (After Reload, Tokens Kept)");
+    }
+
+    public void demoDistributed(String apiKey, int limit, long windowMs, TickSource ticks) {
+        LoopbackLimiterStore store = new LoopbackLimiterStore(ticks);
+        DistributedRateLimiter nodeA = new DistributedRateLimiter(store, "demo", limit, windowMs, 2, ticks);
+        DistributedRateLimiter nodeB = new DistributedRateLimiter(store, "demo", limit, windowMs, 2, ticks);
+
+        System.out.println("Distributed Rate Limiter");
+        System.out.printf("Two nodes sharing %d requests per window, leasing 2 at a time\n", limit);
+
+        runRequests(nodeA, apiKey, 3, "Distributed (Node A)");
+        runRequests(nodeB, apiKey, 3, "Distributed (Node B)");
+        System.out.printf("\nStore round trips: %d\n", store.operations());
+    }
+
+    public void demoComposite(APIRequest request, int limit, TickSource ticks) {
+        CompositeRateLimiter compositeLimiter = new CompositeRateLimiter(
+                new TierLimit(limit, 1),           // per key
+                new TierLimit(limit - 2, 1),       // per key + endpoint
+                new TierLimit(limit * 10, 10),     // per endpoint
+                new TierLimit(limit * 100, 100),   // global
+                ticks);
+        APIRequest otherEndpoint = new APIRequest(request.getApiKey(), request.getApiUrl() + "/other", request.getTimestamp());
+
+        System.out.println("Composite Rate Limiter");
+        System.out.printf("Per key: %d, per key + endpoint: %d\n", limit, limit - 2);
+
+        runRequests(compositeLimiter, request, limit - 1, "Composite (Key + Endpoint Tier)");
+        runRequests(compositeLimiter, otherEndpoint, limit - 1, "Composite (Key Tier)");
+    }
+
     public static void main(String[] args) throws InterruptedException {
-        final Clock clock = Clock.systemUTC();
-        APIRequest request = new APIRequest("apiKey1", "/api/v1/resources", Instant.now(clock));
+        final TickSource ticks = TickSource.system();
+        APIRequest request = new APIRequest("apiKey1", "/api/v1/resources", Instant.now());
         final int LIMIT = 5;
         final long WINDOW_MS = 2000; // 2 seconds
 
@@ -393,18 +5946,48 @@ public class RateLimitingSystem {
 
         RateLimitingSystem o = new RateLimitingSystem();
 
-        o.demoTokenBucket(request.getApiKey(), LIMIT, WINDOW_MS, clock);
+        o.demoTokenBucket(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoLockFreeTokenBucket(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoGcra(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoLeakyBucket(request.getApiKey(), LIMIT, ticks);
+        System.out.println("\n");
+
+        o.demoLeakyBucketShaper(request.getApiKey(), ticks);
+        System.out.println("\n");
+
+        o.demoFixedWindow(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoSlidingWindowLog(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoSlidingWindowCounter(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoComposite(request, LIMIT, ticks);
+        System.out.println("\n");
+
+        o.demoDistributed(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
+        System.out.println("\n");
+
+        o.demoPolicies(request, LIMIT, ticks);
         System.out.println("\n");
 
-        o.demoLeakyBucket(request.getApiKey(), LIMIT, clock);
+        o.demoDecisions(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
         System.out.println("\n");
 
-        o.demoFixedWindow(request.getApiKey(), LIMIT, WINDOW_MS, clock);
+        o.demoMetrics(request.getApiKey(), LIMIT, WINDOW_MS, ticks);
         System.out.println("\n");
 
-        o.demoSlidingWindowLog(request.getApiKey(), LIMIT, WINDOW_MS, clock);
+        o.demoPriorities(request.getApiKey(), ticks);
         System.out.println("\n");
 
-        o.demoSlidingWindowCounter(request.getApiKey(), LIMIT, WINDOW_MS, clock);
+        o.demoAdaptiveConcurrency(request.getApiKey());
     }
 }
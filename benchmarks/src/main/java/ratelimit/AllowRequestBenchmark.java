@@ -0,0 +1,109 @@
+package ratelimit;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * allowRequest for each limiter in {@link RateLimiterBenchmark#LIMITERS} across key
+ * cardinalities, uniform or Zipfian (s = 0.99) key popularity, and an open regime (limits far
+ * above the offered load) versus a throttled one (one permit per key per minute).
+ * {@link #allowRequest} reports ops/s and admitted requests per second, {@link #allowRequestLatency}
+ * sampled latency percentiles in nanoseconds.
+ *
+ * Build with {@code mvn -f benchmarks/pom.xml package}, then run for example
+ * {@code java -jar benchmarks/target/benchmarks.jar AllowRequestBenchmark -t 4 -p keys=1000 -prof gc}
+ * for allocation per operation as well. {@code -p ticks=coarse} uses the coarse clock and
+ * {@code -p instrument=true} wraps each limiter in an {@link InstrumentedRateLimiter}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class AllowRequestBenchmark {
+    @Param({"token", "lockfree", "gcra", "leaky", "fixed", "aligned", "shared", "log", "counter", "sketch",
+            "distributed", "striped", "offheap-token"})
+    public String limiter;
+
+    @Param({"1", "1000", "1000000"})
+    public int keys;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    @Param({"open", "throttled"})
+    public String regime;
+
+    @Param({"system"})
+    public String ticks;
+
+    @Param({"false"})
+    public boolean instrument;
+
+    private RateLimiter rateLimiter;
+    private String[] keyNames;
+    private int[] samples;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RateLimiterBenchmark.LimiterFactory factory = RateLimiterBenchmark.LIMITERS.get(limiter);
+        if (factory == null) throw new IllegalArgumentException("unknown limiter " + limiter);
+        TickSource tickSource = ticks.equals("coarse") ? TickSource.coarse() : TickSource.system();
+        rateLimiter = factory.create(RateLimiterBenchmark.Regime.valueOf(regime.toUpperCase()), keys, tickSource);
+        if (instrument) rateLimiter = new InstrumentedRateLimiter(limiter, rateLimiter);
+        keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = "key-" + i;
+        }
+        samples = RateLimiterBenchmark.sampleKeys(keys,
+                RateLimiterBenchmark.Distribution.valueOf(distribution.toUpperCase()));
+    }
+
+    /** Each thread walks the pre-drawn key samples from its own offset. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Cursor {
+        int position;
+        public long admitted;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            position = ThreadLocalRandom.current().nextInt(RateLimiterBenchmark.KEY_SAMPLES);
+            admitted = 0;
+        }
+    }
+
+    @Benchmark
+    public boolean allowRequest(Cursor cursor) {
+        boolean allowed = rateLimiter.allowRequest(nextKey(cursor)) == RequestStatus.ALLOWED;
+        if (allowed) cursor.admitted++;
+        return allowed;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public RequestStatus allowRequestLatency(Cursor cursor) {
+        return rateLimiter.allowRequest(nextKey(cursor));
+    }
+
+    private String nextKey(Cursor cursor) {
+        String key = keyNames[samples[cursor.position]];
+        cursor.position = (cursor.position + 1) & (samples.length - 1);
+        return key;
+    }
+}
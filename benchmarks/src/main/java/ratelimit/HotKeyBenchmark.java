@@ -0,0 +1,64 @@
+package ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one hot key shared by every thread, comparing the monitor-based, lock-free and
+ * striped token buckets. Compare thread counts with one run per count, e.g.
+ * {@code for t in 1 2 4 8 16 32 64; do java -jar benchmarks/target/benchmarks.jar HotKeyBenchmark -t $t; done}.
+ * {@code permits=4} exercises the weighted path, where a striped request may span stripes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotKeyBenchmark {
+    private static final String HOT_KEY = "global";
+    private static final int CAPACITY = 1_000_000;
+    private static final long REFILL_RATE = 50_000_000L;
+
+    @Param({"monitor", "lockfree", "striped"})
+    public String limiter;
+
+    @Param({"1"})
+    public int permits;
+
+    private RateLimiter rateLimiter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TickSource ticks = TickSource.system();
+        switch (limiter) {
+            case "monitor":
+                rateLimiter = new TokenBucketRateLimiter(CAPACITY, REFILL_RATE, ticks);
+                break;
+            case "lockfree":
+                rateLimiter = new LockFreeTokenBucketRateLimiter(CAPACITY, REFILL_RATE, ticks);
+                break;
+            case "striped":
+                rateLimiter = new StripedTokenBucketRateLimiter(CAPACITY, REFILL_RATE, ticks);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown limiter " + limiter);
+        }
+    }
+
+    @Benchmark
+    public RequestStatus tryAcquire() {
+        return rateLimiter.tryAcquire(HOT_KEY, permits);
+    }
+}